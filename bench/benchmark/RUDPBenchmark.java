@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package benchmark;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import network.MemoryNetwork;
+import network.RUDPImpl;
+import network.Result;
+import network.address.Endpoint;
+import network.protocol.Event;
+import network.protocol.Message;
+
+/**
+ * Round trips between two RUDP instances in the same process, over loopback or the memory network
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class RUDPBenchmark {
+	private final static int TIMEOUT=1000;		// time to wait for an unreliable echo, in milliseconds
+
+	@Param({"socket","channel","memory"})
+	String transport;
+
+	@Param({"16","1024","16384"})
+	int payloadSize;
+
+	private MemoryNetwork network;
+	private RUDPImpl local;
+	private RUDPImpl remote;
+	private Endpoint remoteEndpoint;
+	private byte[] payload;
+	private volatile CompletableFuture<Message> echo;	// completed when the echo of the pending message arrives
+
+	@Setup
+	public void setup() throws Exception{
+		if(transport.equals("memory")){
+			network=new MemoryNetwork(0);
+			local=new RUDPImpl("local",network.bind(0));
+			remote=new RUDPImpl("remote",network.bind(0));
+		}
+		else{
+			local=new RUDPImpl("local",0,transport.equals("channel"));
+			remote=new RUDPImpl("remote",0,transport.equals("channel"));
+		}
+		new Thread(local).start();
+		new Thread(remote).start();
+		Endpoint localEndpoint=new Endpoint(InetAddress.getLoopbackAddress(),local.getLocalPort());
+		remoteEndpoint=new Endpoint(InetAddress.getLoopbackAddress(),remote.getLocalPort());
+		payload=new byte[payloadSize];
+
+		// the remote side echoes touch messages and replies to audio ones
+		remote.getReactor().register(Event.TOUCH, message->{
+			remote.sendMessage(new Message("remote",Event.TOUCH,message.getPayload()),localEndpoint);
+			return null;
+		});
+		remote.getReactor().register(Event.AUDIO, message->{
+			remote.sendMessage(new Message("remote",Message.REPLY,message.getId(),null),localEndpoint);
+			return null;
+		});
+		local.getReactor().register(Event.TOUCH, message->{
+			CompletableFuture<Message> echo=this.echo;
+			if(echo!=null)
+				echo.complete(message);
+			return null;
+		});
+		local.testConnect(remoteEndpoint);
+	}
+
+	@Benchmark
+	public Message unreliableRoundTrip() throws Exception{
+		CompletableFuture<Message> echo=new CompletableFuture<>();
+		this.echo=echo;
+		local.sendMessage(new Message("local",Event.TOUCH,payload),remoteEndpoint);
+		try{
+			return echo.get(TIMEOUT,TimeUnit.MILLISECONDS);
+		}
+		catch(TimeoutException e){
+			return null;
+		}
+	}
+
+	@Benchmark
+	public Result reliableAck(){
+		return local.sendReliableMessage(new Message("local",Event.VIDEO,payload),remoteEndpoint,null,null);
+	}
+
+	@Benchmark
+	public Result reliableReply(){
+		return local.sendReliableMessage(new Message("local",Event.AUDIO,payload),remoteEndpoint,null,message->message);
+	}
+
+	@TearDown
+	public void tearDown(){
+		local.stop();
+		remote.stop();
+		if(network!=null)
+			network.stop();
+	}
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import network.Reactor;
+import network.protocol.Event;
+import network.protocol.Message;
+
+/**
+ * Dispatch throughput of the reactor, until the handlers have taken every message
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ReactorBenchmark {
+	private final static int BATCH=1000;		// messages dispatched per invocation
+
+	@Param({"1","3"})
+	int eventNum;								// events the messages are spread over, each one with its own lane
+
+	private Reactor reactor;
+	private Message[] messages;
+	private final AtomicLong handled=new AtomicLong();
+	private long dispatched=0;
+
+	@Setup
+	public void setup(){
+		reactor=new Reactor();
+		int[] events={Event.TOUCH,Event.AUDIO,Event.CONNECT};
+		for(int i=0;i<eventNum;i++){
+			reactor.register(events[i], message->handled.incrementAndGet());
+			reactor.setOverflowPolicy(events[i], BATCH, Reactor.DROP_NEWEST);
+		}
+		messages=new Message[BATCH];
+		for(int i=0;i<BATCH;i++)
+			messages[i]=new Message("user",events[i%eventNum],new byte[16]);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void dispatch(){
+		for(Message message:messages)
+			reactor.dispatch(message);
+		dispatched+=BATCH;
+		while(handled.get()<dispatched)
+			Thread.yield();
+	}
+
+	@TearDown
+	public void tearDown(){
+		reactor.shutdown();
+	}
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package benchmark;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import network.address.Endpoint;
+import network.address.NetworkInfo;
+import network.assist.Serializer;
+import network.protocol.Event;
+import network.protocol.Message;
+import network.protocol.Payload;
+import network.protocol.TouchFlag;
+
+/**
+ * Serialization of the objects sent on the wire
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class SerializerBenchmark {
+	@Param({"16","1024","16384"})
+	int payloadSize;						// bytes of the message payload
+
+	private Message message;
+	private Payload payload;
+	private Endpoint endpoint;
+	private NetworkInfo[] networkInfos;
+
+	private byte[] messageData;
+	private byte[] payloadData;
+	private byte[] endpointData;
+	private byte[] networkInfosData;
+	private byte[] buffer;					// reused by the writes into an array
+
+	@Setup
+	public void setup() throws Exception{
+		message=new Message("user",Event.TOUCH,new byte[payloadSize]);
+		message.setTimestamp();
+		List<String> path=new ArrayList<>();
+		for(int i=0;i<payloadSize/16;i++)
+			path.add(i+","+(i*2));
+		payload=new Payload(TouchFlag.ADD,path);
+		endpoint=new Endpoint(InetAddress.getByName("192.168.1.10"),40000);
+		networkInfos=new NetworkInfo[8];
+		for(int i=0;i<networkInfos.length;i++)
+			networkInfos[i]=new NetworkInfo("user"+i,new Endpoint(InetAddress.getByName("192.168.1."+i),40000+i),
+					new Endpoint(InetAddress.getByName("10.0.0."+i),50000+i));
+
+		messageData=Serializer.write(message);
+		payloadData=Serializer.write(payload);
+		endpointData=Serializer.write(endpoint);
+		networkInfosData=Serializer.write(networkInfos);
+		buffer=new byte[messageData.length+64];
+	}
+
+	@Benchmark
+	public byte[] writeMessage(){
+		return Serializer.write(message);
+	}
+
+	@Benchmark
+	public Object readMessage(){
+		return Serializer.read(messageData,Message.class);
+	}
+
+	@Benchmark
+	public int writeMessageIntoArray(){
+		return Serializer.write(message,buffer,0);
+	}
+
+	@Benchmark
+	public Object readMessageFromArray(){
+		return Serializer.read(messageData,0,messageData.length,Message.class);
+	}
+
+	@Benchmark
+	public byte[] writePayload(){
+		return Serializer.write(payload);
+	}
+
+	@Benchmark
+	public Object readPayload(){
+		return Serializer.read(payloadData,Payload.class);
+	}
+
+	@Benchmark
+	public byte[] writePayloadMessage(){
+		return Serializer.write(new Message("user",Event.TOUCH,Serializer.write(payload)));
+	}
+
+	@Benchmark
+	public byte[] writeTypedMessage(){
+		return Serializer.write(Message.typed("user",Event.TOUCH,payload));
+	}
+
+	@Benchmark
+	public byte[] writeEndpoint(){
+		return Serializer.write(endpoint);
+	}
+
+	@Benchmark
+	public Object readEndpoint(){
+		return Serializer.read(endpointData,Endpoint.class);
+	}
+
+	@Benchmark
+	public byte[] writeNetworkInfos(){
+		return Serializer.write(networkInfos);
+	}
+
+	@Benchmark
+	public Object readNetworkInfos(){
+		return Serializer.read(networkInfosData,NetworkInfo[].class);
+	}
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import controller.TouchController;
+import controller.TouchController.TouchPoint;
+import network.assist.Serializer;
+import network.protocol.Payload;
+import network.protocol.TouchFlag;
+
+/**
+ * Encoding of touch paths the way TouchController sends them, and decoding the way it receives them
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class TouchPathBenchmark {
+	@Param({"10","100","1000"})
+	int pointNum;
+
+	private TouchController controller;
+	private double[] coordinates;
+	private byte[] data;
+
+	@Setup
+	public void setup(){
+		controller=new TouchController();
+		coordinates=new double[pointNum*2];
+		for(int i=0;i<coordinates.length;i++)
+			coordinates[i]=Math.sin(i)*500+500;
+		data=encode();
+	}
+
+	/**
+	 * Build the path from its points and serialize it, as startPath, extendPath and endPath do
+	 * @return the payload data
+	 */
+	@Benchmark
+	public byte[] encode(){
+		List<String> path=new ArrayList<>();
+		for(int i=0;i<coordinates.length;i+=2)
+			path.add(controller.new TouchPoint(coordinates[i],coordinates[i+1]).toString());
+		return Serializer.write(new Payload(TouchFlag.ADD,path));
+	}
+
+	/**
+	 * Deserialize the path and parse its points, as the touch handler does
+	 * @return the points
+	 */
+	@Benchmark
+	public List<TouchPoint> decode(){
+		Payload payload=(Payload)Serializer.read(data,Payload.class);
+		@SuppressWarnings("unchecked")
+		List<String> path=(List<String>)payload.getData();
+		List<TouchPoint> points=new ArrayList<>();
+		for(String str:path)
+			points.add(controller.new TouchPoint(str));
+		return points;
+	}
+}
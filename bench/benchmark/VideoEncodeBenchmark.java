@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package benchmark;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import controller.VideoController;
+
+/**
+ * JPEG encoding of captured frames, per resolution and quality
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class VideoEncodeBenchmark {
+	@Param({"320x240","640x480","1280x720"})
+	String resolution;
+
+	@Param({"0.2","0.5","0.8"})
+	float quality;
+
+	private BufferedImage image;
+
+	/**
+	 * Draw a frame with smooth gradients and some noise, closer to a camera image than a flat one
+	 */
+	@Setup
+	public void setup(){
+		String[] size=resolution.split("x");
+		int width=Integer.parseInt(size[0]);
+		int height=Integer.parseInt(size[1]);
+		image=new BufferedImage(width,height,BufferedImage.TYPE_3BYTE_BGR);
+		Random random=new Random(0);
+		for(int y=0;y<height;y++)
+			for(int x=0;x<width;x++){
+				int r=(x*255/width+random.nextInt(16))&0xFF;
+				int g=(y*255/height+random.nextInt(16))&0xFF;
+				int b=((x+y)*255/(width+height)+random.nextInt(16))&0xFF;
+				image.setRGB(x, y, (r<<16)|(g<<8)|b);
+			}
+	}
+
+	@Benchmark
+	public byte[] encode() throws Exception{
+		return VideoController.encode(image,quality);
+	}
+}
@@ -1,59 +1,278 @@
-/*******************************************************************************
- * Copyright Yifan Ruan
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- *******************************************************************************/
-package controller;
-import network.Handler;
-import network.RUDPImpl;
-import network.Result;
-import network.address.Endpoint;
-import network.protocol.Message;
-
-/**
- * Abstract controller of channel controllers
- * @author Yifan Ruan (ry222ad@student.lnu.se)
- */
-public abstract class AbstractController {
-	private String userId;
-	private RUDPImpl mainRUDP;
-	private Endpoint remoteEndpoint;
-		
-	protected void configure(String userId,RUDPImpl mainRUDP){
-		this.userId=userId;
-		this.mainRUDP=mainRUDP;
-	}
-	
-	protected void setRemoteEndpoint(Endpoint remoteEndpoint){
-		this.remoteEndpoint=remoteEndpoint;
-	}
-	
-	/**
-	 * Register specific handler of controller
-	 */
-	protected abstract void registerControllerHandler();
-	
-	protected void registerHandler(int event, Handler handler){
-		this.mainRUDP.getReactor().register(event, handler);
-	}
-	
-	protected void sendMessage(int event, byte[] payload){
-		Message message=new Message(userId,event,payload);
-		this.mainRUDP.sendMessage(message,remoteEndpoint);
-	}
-	
-	protected Result sendReliableMessage(int event, byte[] payload, Handler handler){
-		Message message=new Message(userId,event,payload);
-		return mainRUDP.sendReliableMessage(message, remoteEndpoint, null, handler);	
-	}
-}
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package controller;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import network.Handler;
+import network.RUDPImpl;
+import network.Result;
+import network.address.Endpoint;
+import network.assist.Serializer;
+import network.protocol.Message;
+import network.protocol.Payload;
+
+/**
+ * Abstract controller of channel controllers
+ * Messages are sent to every connected session, through the lane of the controller where the session has one
+ * @author Yifan Ruan (ry222ad@student.lnu.se)
+ */
+public abstract class AbstractController {
+	private String userId;
+	private RUDPImpl mainRUDP;
+	private RUDPImpl laneRUDP;					// own socket of the controller, if opened
+	private Collection<Session> sessions=Collections.emptyList();	// sessions of the central controller
+		
+	protected void configure(String userId,RUDPImpl mainRUDP,Collection<Session> sessions){
+		this.userId=userId;
+		this.mainRUDP=mainRUDP;
+		this.sessions=sessions;
+	}
+	
+	/**
+	 * Give the controller its own lane, so its messages do not queue behind the others
+	 * @param laneRUDP the lane
+	 */
+	protected void configureLane(RUDPImpl laneRUDP){
+		this.laneRUDP=laneRUDP;
+	}
+	
+	/**
+	 * Get the own lane of the controller
+	 * @return the lane, or null if not opened
+	 */
+	protected RUDPImpl getLane(){
+		return laneRUDP;
+	}
+	
+	/**
+	 * Get the number of connected sessions, which each message is sent to
+	 * @return the number of sessions
+	 */
+	protected int getSessionNum(){
+		int sessionNum=0;
+		for(Session session:sessions)
+			if(session.isConnected())
+				sessionNum++;
+		return sessionNum;
+	}
+	
+	/**
+	 * Register specific handler of controller
+	 */
+	protected abstract void registerControllerHandler();
+	
+	protected void registerHandler(int event, Handler handler){
+		this.mainRUDP.getReactor().register(event, handler);
+		// the remote side may not have a lane, then messages come to the main socket
+		if(laneRUDP!=null)
+			this.laneRUDP.getReactor().register(event, handler);
+	}
+	
+	/**
+	 * Bound the messages of the event waiting for the handler, on the main socket and the lane
+	 * @param event the message event
+	 * @param capacity max waiting messages
+	 * @param policy overflow policy of the reactor
+	 */
+	protected void setOverflowPolicy(int event, int capacity, int policy){
+		this.mainRUDP.getReactor().setOverflowPolicy(event, capacity, policy);
+		if(laneRUDP!=null)
+			this.laneRUDP.getReactor().setOverflowPolicy(event, capacity, policy);
+	}
+	
+	/**
+	 * Get the number of messages of the event dropped because the handler could not keep up
+	 * @param event the message event
+	 * @return the drop count, on the main socket and the lane
+	 */
+	protected long getDropCount(int event){
+		long drops=this.mainRUDP.getReactor().getDropCount(event);
+		if(laneRUDP!=null)
+			drops+=this.laneRUDP.getReactor().getDropCount(event);
+		return drops;
+	}
+	
+	/**
+	 * Read the metrics of the main socket and the lane, such as "event.VIDEO.messagesOut.rate" for the sent frame rate
+	 * @return the values by name, those of the lane prefixed by "lane."
+	 */
+	protected Map<String,Long> getMetrics(){
+		Map<String,Long> metrics=this.mainRUDP.getMetrics().snapshot();
+		if(laneRUDP!=null)
+			this.laneRUDP.getMetrics().snapshot().forEach((name,value)->metrics.put("lane."+name, value));
+		return metrics;
+	}
+	
+	/**
+	 * Protect unreliable messages of the event with forward error correction, on the main socket and the lane
+	 * @param event the message event
+	 * @param code RUDPImpl.XOR, RUDPImpl.REED_SOLOMON, or 0 not to protect
+	 * @param groupSize datagrams in a group
+	 * @param parityNum parity datagrams of a group
+	 */
+	protected void setErrorCorrection(int event, int code, int groupSize, int parityNum){
+		this.mainRUDP.setErrorCorrection(event, code, groupSize, parityNum);
+		if(laneRUDP!=null)
+			this.laneRUDP.setErrorCorrection(event, code, groupSize, parityNum);
+	}
+	
+	/**
+	 * Pace unreliable messages of the event, on the main socket and the lane
+	 * @param event the message event
+	 * @param rate the rate in bytes per second, 0 not to pace
+	 */
+	protected void setPacingRate(int event, long rate){
+		this.mainRUDP.setPacingRate(event, rate);
+		if(laneRUDP!=null)
+			this.laneRUDP.setPacingRate(event, rate);
+	}
+	
+	/**
+	 * Get the estimated available bandwidth to the remote sides
+	 * @return the lowest bandwidth of the sessions in bytes per second, -1 if not estimated yet
+	 */
+	protected long getEstimatedBandwidth(){
+		long bandwidth=-1;
+		for(Session session:sessions){
+			if(!session.isConnected())
+				continue;
+			Endpoint laneEndpoint=session.getLaneEndpoint(this);
+			long estimate=laneEndpoint!=null?laneRUDP.getBandwidthEstimator(laneEndpoint).getEstimatedBandwidth():
+				mainRUDP.getBandwidthEstimator(session.getEndpoint()).getEstimatedBandwidth();
+			if(estimate>=0 && (bandwidth<0 || estimate<bandwidth))
+				bandwidth=estimate;
+		}
+		return bandwidth;
+	}
+	
+	/**
+	 * Send unreliable message to the connected sessions, serialized once for each socket
+	 * Each socket is given its own message, carrying the acknowledgements of that socket
+	 * @param event the message event
+	 * @param payload the payload, shared by the messages
+	 */
+	protected void sendMessage(int event, byte[] payload){
+		List<Endpoint> mainReceivers=new ArrayList<>();
+		List<Endpoint> laneReceivers=new ArrayList<>();
+		for(Session session:sessions){
+			if(!session.isConnected())
+				continue;
+			Endpoint laneEndpoint=session.getLaneEndpoint(this);
+			if(laneEndpoint!=null)
+				laneReceivers.add(laneEndpoint);
+			else if(session.getEndpoint()!=null)
+				mainReceivers.add(session.getEndpoint());
+		}
+		if(!laneReceivers.isEmpty())
+			this.laneRUDP.sendMessage(new Message(userId,event,payload),laneReceivers);
+		if(!mainReceivers.isEmpty())
+			this.mainRUDP.sendMessage(new Message(userId,event,payload),mainReceivers);
+	}
+	
+	/**
+	 * Send reliable message to the connected sessions, waiting for all of them
+	 * @param event the message event
+	 * @param payload the payload, shared by the messages
+	 * @param handler the reply handler, called for each reply
+	 * @return the result of the first session failing, otherwise of the first session
+	 */
+	protected Result sendReliableMessage(int event, byte[] payload, Handler handler){
+		try {
+			return sendReliableMessageAsync(event, payload, handler).get();
+		} catch (Exception e) {
+			return new Result(Result.EXTRA_ERROR);
+		}
+	}
+	
+	/**
+	 * Send reliable typed message to the connected sessions, waiting for all of them
+	 * @param event the message event
+	 * @param payload the payload, serialized along with the message
+	 * @param handler the reply handler, called for each reply
+	 * @return the result of the first session failing, otherwise of the first session
+	 */
+	protected Result sendReliableMessage(int event, Payload payload, Handler handler){
+		try {
+			return sendReliableMessageAsync(event, payload, handler).get();
+		} catch (Exception e) {
+			return new Result(Result.EXTRA_ERROR);
+		}
+	}
+	
+	/**
+	 * Send reliable message to the connected sessions without blocking
+	 * Each session is sent its own message, since sequence numbers differ, but the payload is shared
+	 * @param event the message event
+	 * @param payload the payload, shared by the messages
+	 * @param handler the reply handler, called for each reply
+	 * @return the future of the result of the first session failing, otherwise of the first session
+	 */
+	protected CompletableFuture<Result> sendReliableMessageAsync(int event, byte[] payload, Handler handler){
+		return sendReliableMessageAsync(()->new Message(userId,event,payload), handler);
+	}
+	
+	/**
+	 * Send reliable typed message to the connected sessions without blocking
+	 * With one session the payload is serialized in place into the message, otherwise once for all of them
+	 * @param event the message event
+	 * @param payload the payload
+	 * @param handler the reply handler, called for each reply
+	 * @return the future of the result of the first session failing, otherwise of the first session
+	 */
+	protected CompletableFuture<Result> sendReliableMessageAsync(int event, Payload payload, Handler handler){
+		if(getSessionNum()>1)
+			return sendReliableMessageAsync(event, Serializer.write(payload), handler);
+		return sendReliableMessageAsync(()->Message.typed(userId,event,payload), handler);
+	}
+	
+	/**
+	 * Send a reliable message to each connected session
+	 * @param messages creator of the message of each session
+	 * @param handler the reply handler, called for each reply
+	 * @return the future of the result of the first session failing, otherwise of the first session
+	 */
+	private CompletableFuture<Result> sendReliableMessageAsync(Supplier<Message> messages, Handler handler){
+		List<CompletableFuture<Result>> futures=new ArrayList<>();
+		for(Session session:sessions){
+			if(!session.isConnected())
+				continue;
+			Message message=messages.get();
+			Endpoint laneEndpoint=session.getLaneEndpoint(this);
+			if(laneEndpoint!=null)
+				futures.add(laneRUDP.sendReliableMessageAsync(message, laneEndpoint, null, handler));
+			else
+				futures.add(mainRUDP.sendReliableMessageAsync(message, session.getEndpoint(), null, handler));
+		}
+		if(futures.isEmpty())
+			return CompletableFuture.completedFuture(new Result(Result.EXTRA_ERROR));
+		if(futures.size()==1)
+			return futures.get(0);
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(done->{
+			for(CompletableFuture<Result> future:futures){
+				Result result=future.join();
+				if(result.getFlag()!=Result.RECEIVED && result.getFlag()!=Result.REPLIED)
+					return result;
+			}
+			return futures.get(0).join();
+		});
+	}
+}
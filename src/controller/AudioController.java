@@ -26,6 +26,7 @@ import javax.sound.sampled.DataLine;
 import javax.sound.sampled.SourceDataLine;
 import javax.sound.sampled.TargetDataLine;
 import network.Handler;
+import network.assist.Threads;
 import network.protocol.Event;
 
 /**
@@ -98,7 +99,7 @@ public class AudioController extends AbstractController{
 				sourceLine.open(format);
 				sourceLine.start();
 				
-	        	new Thread(new PlayVoice()).start();
+	        	Threads.start(new PlayVoice(),"Audio play");
 			}catch(Exception e){
 				e.printStackTrace();
 			}          
@@ -153,7 +154,7 @@ public class AudioController extends AbstractController{
 			    } 
 			}			
 		};
-		new Thread(audioTransmit).start();
+		Threads.start(audioTransmit,"Audio transmit");
 	}
 	
 	/**
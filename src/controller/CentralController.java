@@ -18,25 +18,30 @@ import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import network.Handler;
 import network.Result;
 import network.RUDPImpl;
+import network.Transport;
 import network.address.Endpoint;
 import network.address.NetworkInfo;
 import network.assist.STUNServerClient;
-import network.assist.Serializer;
 //import network.assist.Serialization;
 import network.assist.TURNServerClient;
+import network.assist.Threads;
 import network.protocol.ConnectFlag;
 import network.protocol.Event;
 import network.protocol.Message;
@@ -45,6 +50,7 @@ import network.protocol.Payload;
 /**
  * Controller for building connection and managing registered controllers
  * responsible for "CONNECT", "STUN" and "TURN" message
+ * Each remote user connected has its own session, so one process can hold conversations with several users at once
  * @author Yifan Ruan (ry222ad@student.lnu.se)
  */
 public class CentralController extends AbstractController{
@@ -54,22 +60,22 @@ public class CentralController extends AbstractController{
 	private InetAddress hostAddress;
 
 	private Set<AbstractController> controllers=new HashSet<>();    // registered channel controllers
+	private Map<AbstractController,RUDPImpl> lanes=new ConcurrentHashMap<>();   // own sockets of channel controllers
 	
-	private ScheduledExecutorService scheduler=Executors.newScheduledThreadPool(10);
+	private ScheduledExecutorService scheduler=Threads.newScheduledPool(10,"Central scheduler");
+	private ExecutorService connectExecutor=Threads.newPool(0,"Central connect");   // handshakes, which block
+	private Map<String,CompletableFuture<Void>> connectTasks=new ConcurrentHashMap<>();   // last pending "CONNECT" message of each remote user
 	
 	private Endpoint STUNServerEndpoint;
 	private Endpoint TURNServerEndpoint;
 	private STUNServerClient stunServerClient;
 	private TURNServerClient turnServerClient;
 		
-	private String remoteUserId;
-	private Endpoint remoteEndpoint;	
+	private Map<String,Session> sessions=new ConcurrentHashMap<>();   // session with each remote user
 	
 	private String[] remoteUserIds;
 	private  Map<String,NetworkInfo> remoteNetworkInfos=new ConcurrentHashMap<>(); 
 	
-	private boolean isConnectEnd=true;          
-	
 	private Hook inEstablishHook;       // when receiving "CONNECT" message for establishing
 	private Hook connectHook; 			// when connectivity is ready       
 	private Hook inTerminateHook;      	// when receiving "CONNECT" message for terminating
@@ -83,7 +89,23 @@ public class CentralController extends AbstractController{
 	 * @param TURNServerPort the TURN server port
 	 */
 	public CentralController(String userId,int hostPort, String relayServerAddress, int STUNServerPort, int TURNServerPort){
-		mainRUDP=new RUDPImpl(userId,hostPort);
+		this(userId,new RUDPImpl(userId,hostPort),relayServerAddress,STUNServerPort,TURNServerPort);
+	}
+	
+	/**
+	 * Constructor over a given transport, such as an in-memory one for testing
+	 * @param userId the user id, identifying who owns the controller
+	 * @param transport the transport, lanes are opened from it
+	 * @param relayServerAddress the relay server IP address
+	 * @param STUNServerPort the STUN server port
+	 * @param TURNServerPort the TURN server port
+	 */
+	public CentralController(String userId,Transport transport, String relayServerAddress, int STUNServerPort, int TURNServerPort){
+		this(userId,new RUDPImpl(userId,transport),relayServerAddress,STUNServerPort,TURNServerPort);
+	}
+	
+	private CentralController(String userId,RUDPImpl mainRUDP, String relayServerAddress, int STUNServerPort, int TURNServerPort){
+		this.mainRUDP=mainRUDP;
     	new Thread(mainRUDP).start();	
     	
 		this.userId=userId;	
@@ -94,9 +116,11 @@ public class CentralController extends AbstractController{
 			TURNServerEndpoint=new Endpoint(InetAddress.getByName(relayServerAddress),TURNServerPort);
 			this.stunServerClient=new STUNServerClient(userId, mainRUDP,STUNServerEndpoint);
 			this.turnServerClient=new TURNServerClient(userId, mainRUDP,TURNServerEndpoint);
+			// the TURN server and the relayed peer are both behind its endpoint
+			mainRUDP.addRelayEndpoint(TURNServerEndpoint);
 			
 			//System.out.println("Register user");
-			this.stunServerClient.register(hostAddress, hostPort);
+			this.stunServerClient.register(hostAddress, mainRUDP.getLocalPort());
 			
 			mainRUDP.keepAlive(5000);
 			mainRUDP.addKeepAliveEndpoint(TURNServerEndpoint);		
@@ -115,11 +139,51 @@ public class CentralController extends AbstractController{
 			System.out.println("The controller has not been initialized");
 			return false;
 		}
-		controller.configure(userId, mainRUDP);
+		controller.configure(userId, mainRUDP, sessions.values());
 		this.controllers.add(controller);
 		return true;
 	}
 	
+	/**
+	 * Register channel controller with its own lane, a socket and receive thread
+	 * so large messages of other controllers do not delay its messages
+	 * The lane is used once the remote side opens the lane of the same controller, negotiated after connecting
+	 * @param controller controller to be managed
+	 * @param lanePort the lane port, 0 for any free port
+	 * @param bufferSize the socket buffer size of the lane in bytes
+	 * @return  true if success
+	 */
+	public boolean registerController(AbstractController controller, int lanePort, int bufferSize){
+		if(controller==null){
+			System.out.println("The controller has not been initialized");
+			return false;
+		}
+		RUDPImpl laneRUDP;
+		try{
+			laneRUDP=new RUDPImpl(userId,mainRUDP.getTransport().bind(lanePort));
+		}
+		catch(Exception e){
+			System.out.println("The lane cannot be opened");
+			return false;
+		}
+		registerController(controller);
+		laneRUDP.setBufferSize(bufferSize);
+		new Thread(laneRUDP).start();
+		controller.configureLane(laneRUDP);
+		lanes.put(controller, laneRUDP);
+		return true;
+	}
+	
+	/**
+	 * Set the flush window of batches, small messages sent to the remote user within the window are packed in one datagram
+	 * Only peer-to-peer connections are batched, the relay server does not unpack batches
+	 * @param window the max delay of a message in microseconds, 0 to disable batching
+	 */
+	public void setBatchWindow(int window){
+		mainRUDP.setBatchWindow(window);
+		lanes.values().forEach(laneRUDP->laneRUDP.setBatchWindow(window));
+	}
+	
 	/**
 	 * Set the hook,which is executed when receiving the communication invitation
 	 * @param hook the hook
@@ -145,6 +209,23 @@ public class CentralController extends AbstractController{
 	}
 	
 	
+	/**
+	 * Get the sessions with remote users
+	 * @return the sessions, connected or being connected
+	 */
+	public Collection<Session> getSessions(){
+		return Collections.unmodifiableCollection(sessions.values());
+	}
+	
+	/**
+	 * Get the session with a remote user
+	 * @param remoteUserId the remote user id
+	 * @return the session, or null if none
+	 */
+	public Session getSession(String remoteUserId){
+		return sessions.get(remoteUserId);
+	}
+	
 	/**
 	 * Set remote user ids
 	 * @param remoteUserIds the list of remote user id
@@ -192,75 +273,101 @@ public class CentralController extends AbstractController{
 	
 	/**
 	 * Register central controller handler
+	 * The handshakes block, so they run out of the reactor lane, in order for each remote user
+	 * and side by side for different ones
 	 */
 	public void registerControllerHandler(){
 		Handler handler=(message)->{
-			try{				
-				Payload payload= (Payload)Serializer.read(message.getPayload(),Payload.class);
-				
-				if(payload.getFlag()==ConnectFlag.ESTABLISH){			
-					remoteUserId=message.getSenderId();		
-					if(isConnectEnd){  // determine current status of connectivity
-						if(testConnect(remoteUserId)){       // determine the communication model, P2P or C/S
-							int messageId=message.getId();
-							int verifyNum=(int)payload.getData();
-							boolean accept = (boolean)inEstablishHook.execute(remoteUserId);  // execute hook and get the decision from end user 
+			String remoteUserId=message.getSenderId();
+			CompletableFuture<Void> task=connectTasks.compute(remoteUserId, (key,previous)->
+				(previous!=null?previous:CompletableFuture.<Void>completedFuture(null)).thenRunAsync(()->handleConnect(message),connectExecutor));
+			task.whenComplete((result,e)->connectTasks.remove(remoteUserId,task));
+			return null;
+		};
+		
+		this.mainRUDP.getReactor().register(Event.CONNECT, handler);
+	}
+	
+	/**
+	 * Handle a "CONNECT" message
+	 * @param message the message
+	 */
+	private void handleConnect(Message message){
+		try{				
+			Payload payload=message.getPayload(Payload.class);
+			
+			String remoteUserId=message.getSenderId();
+			Session session=sessions.get(remoteUserId);
+			if(payload.getFlag()==ConnectFlag.ESTABLISH){			
+				if(session==null || !session.isConnected()){  // determine current status of connectivity with the user
+					session=testConnect(remoteUserId);       // determine the communication model, P2P or C/S
+					if(session!=null){
+						int messageId=message.getId();
+						int verifyNum=(int)payload.getData();
+						boolean accept = (boolean)inEstablishHook.execute(remoteUserId);  // execute hook and get the decision from end user 
 
-							Message reply;
-							if (accept)
-								reply=new Message(userId,Message.REPLY,messageId,
-										Serializer.write(new Payload(ConnectFlag.ESTABLISH, verifyNum+1)));
-							else 
-								reply=new Message(userId,Message.REPLY,messageId,
-										Serializer.write(new Payload(ConnectFlag.ESTABLISH, -1)));
-							
-							Result result=mainRUDP.sendReliableMessage(reply, remoteEndpoint, null, null);   
-							if(result.getFlag()==Result.RECEIVED && accept){
-		        				isConnectEnd=false;
-								connectHook.execute();
-							}
+						Message reply;
+						if (accept)
+							reply=Message.reply(userId,messageId,new Payload(ConnectFlag.ESTABLISH, verifyNum+1));
+						else 
+							reply=Message.reply(userId,messageId,new Payload(ConnectFlag.ESTABLISH, -1));
+						
+						Result result=mainRUDP.sendReliableMessage(reply, session.getEndpoint(), null, null);   
+						if(result.getFlag()==Result.RECEIVED && accept){
+	        				session.setConnected(true);
+							connectHook.execute(remoteUserId);
 						}
 					}
 				}
-				
-				else if(payload.getFlag()==ConnectFlag.TERMINATE){
-					Message reply=new Message(userId,Message.REPLY,message.getId(),
-							Serializer.write(new Payload(ConnectFlag.TERMINATE, (int)payload.getData()+1)));
-    				Result result=mainRUDP.sendReliableMessage(reply, remoteEndpoint, null, null);
+			}
+			
+			else if(payload.getFlag()==ConnectFlag.TERMINATE){
+				if(session==null)
+					return;
+				Message reply=Message.reply(userId,message.getId(),new Payload(ConnectFlag.TERMINATE, (int)payload.getData()+1));
+    				Result result=mainRUDP.sendReliableMessage(reply, session.getEndpoint(), null, null);
     				if(result.getFlag()==Result.RECEIVED){
-        				isConnectEnd=true;
-        				inTerminateHook.execute();
+    					close(session);
+        				inTerminateHook.execute(remoteUserId);
     				}
     			}
-				else{
-					System.out.println("Wrong CONNECT message!!!");
-				}				
+			else if(payload.getFlag()==ConnectFlag.LANES){
+				// answer with own lanes, then test the lanes opened on both sides
+				if(session==null)
+					return;
+				@SuppressWarnings("unchecked")
+				Map<String,Integer> remoteLanePorts=(Map<String,Integer>)payload.getData();
+				Message reply=Message.reply(userId,message.getId(),new Payload(ConnectFlag.LANES, getLanePorts(session)));
+				mainRUDP.sendReliableMessage(reply, session.getEndpoint(), null, null);
+				connectLanes(session,remoteLanePorts);
 			}
-	        catch(Exception e){
-	        	e.printStackTrace();
-	        }
-			return null;
-		};
-		
-		this.mainRUDP.getReactor().register(Event.CONNECT, handler);
+			else{
+				System.out.println("Wrong CONNECT message!!!");
+			}				
+		}
+	    catch(Exception e){
+	    	e.printStackTrace();
+	    }
 	}
 
 	/**
-	 * Connect with remote user
+	 * Connect with remote user, other sessions going on
 	 * @param remoteUserId  remote user to be connected
 	 * @return   true if success
 	 */
 	public boolean connect(String remoteUserId){
-		if(this.testConnect(remoteUserId)){
+		Session session=this.testConnect(remoteUserId);
+		if(session!=null){
 			int varifyNum=Math.abs((new Random()).nextInt());		// generate random number for authentication
 			Payload payload=new Payload(ConnectFlag.ESTABLISH,varifyNum);
-			Message message=new Message(userId,Event.CONNECT,Serializer.write(payload));						
+			Message message=Message.typed(userId,Event.CONNECT,payload);						
 			Handler handler= (reply)->{
-					return (int)((Payload)Serializer.read(reply.getPayload(),Payload.class)).getData()==(varifyNum+1);
+					return (int)reply.getPayload(Payload.class).getData()==(varifyNum+1);
 			};
-			Result result=mainRUDP.sendReliableMessage(message, remoteEndpoint, null, handler);
+			Result result=mainRUDP.sendReliableMessage(message, session.getEndpoint(), null, handler);
 			if(result.getFlag()==Result.REPLIED && (boolean)result.getData()){
-				isConnectEnd=false;
+				session.setConnected(true);
+				negotiateLanes(session);
 				return true;
 			}
 		}
@@ -268,33 +375,134 @@ public class CentralController extends AbstractController{
 	}
 	
 	/**
-	 * Terminate current connectivity
+	 * Offer own lanes to the remote side, messages go through the main socket until lanes are connected
+	 * @param session the session with the remote side
+	 */
+	private void negotiateLanes(Session session){
+		if(lanes.isEmpty())
+			return;
+		Message message=Message.typed(userId,Event.CONNECT,new Payload(ConnectFlag.LANES, getLanePorts(session)));
+		Handler handler= (reply)->{
+			@SuppressWarnings("unchecked")
+			Map<String,Integer> remoteLanePorts=(Map<String,Integer>)reply.getPayload(Payload.class).getData();
+			connectLanes(session,remoteLanePorts);
+			return null;
+		};
+		mainRUDP.sendReliableMessageAsync(message, session.getEndpoint(), null, handler);
+	}
+	
+	/**
+	 * Get the ports of own lanes, keyed by controller class
+	 * Relayed messages all go through the TURN server, so no lane is offered then
+	 * @param session the session with the remote side
+	 * @return the lane ports
+	 */
+	private HashMap<String,Integer> getLanePorts(Session session){
+		HashMap<String,Integer> lanePorts=new HashMap<>();
+		if(session.getEndpoint()!=null && session.getPathType()!=Session.RELAYED)
+			lanes.forEach((controller,laneRUDP)->lanePorts.put(controller.getClass().getName(), laneRUDP.getLocalPort()));
+		return lanePorts;
+	}
+	
+	/**
+	 * Connect own lanes with the remote lanes of the same controllers
+	 * A lane not reachable, e.g. behind NAT, falls back on the main socket
+	 * @param session the session with the remote side
+	 * @param remoteLanePorts the remote lane ports, keyed by controller class
+	 */
+	private void connectLanes(Session session, Map<String,Integer> remoteLanePorts){
+		Endpoint remoteEndpoint=session.getEndpoint();
+		lanes.forEach((controller,laneRUDP)->{
+			Integer port=remoteLanePorts==null?null:remoteLanePorts.get(controller.getClass().getName());
+			Endpoint laneEndpoint=null;
+			if(port!=null && remoteEndpoint!=null && session.getPathType()!=Session.RELAYED){
+				laneEndpoint=new Endpoint(remoteEndpoint.getAddress(),port);
+				if(laneRUDP.testConnect(laneEndpoint))
+					laneRUDP.addBatchEndpoint(laneEndpoint);
+				else{
+					laneRUDP.evict(laneEndpoint);
+					laneEndpoint=null;
+				}
+			}
+			session.setLaneEndpoint(controller,laneEndpoint);
+		});
+	}
+	
+	/**
+	 * Terminate the connectivity with all connected users
+	 * @return true if success with every user
+	 */
+	public boolean disconnect(){
+		boolean isDisconnected=true;
+		for(Session session:sessions.values())
+			if(session.isConnected())
+				isDisconnected&=disconnect(session.getRemoteUserId());
+		return isDisconnected;
+	}
+	
+	/**
+	 * Terminate the connectivity with a remote user, other sessions going on
+	 * @param remoteUserId the remote user id
 	 * @return true if success
 	 */
-	public boolean disconnect(){		
+	public boolean disconnect(String remoteUserId){
+		Session session=sessions.get(remoteUserId);
+		if(session==null)
+			return false;
 		int varifyNum=Math.abs((new Random()).nextInt());
 		Payload payload=new Payload(ConnectFlag.TERMINATE,varifyNum);
-		Message message=new Message(userId,Event.CONNECT,Serializer.write(payload));						
+		Message message=Message.typed(userId,Event.CONNECT,payload);						
 		Handler handler= (reply)->{
-				return (int)((Payload)Serializer.read(reply.getPayload(),Payload.class)).getData()==(varifyNum+1);
+				return (int)reply.getPayload(Payload.class).getData()==(varifyNum+1);
 		};
-		Result result=mainRUDP.sendReliableMessage(message, remoteEndpoint, null, handler);	
+		Result result=mainRUDP.sendReliableMessage(message, session.getEndpoint(), null, handler);	
 		if(result.getFlag()==Result.REPLIED && (boolean)result.getData()){
-			isConnectEnd=true;
+			close(session);
 			return true;
 		}
 		return false;
 	}
 	
 	/**
-	 * Test connectivity, determining remote endpoint to send message
+	 * End a session, its messages are no longer sent
+	 * @param session the session
+	 */
+	private void close(Session session){
+		session.setConnected(false);
+		sessions.remove(session.getRemoteUserId(), session);
+		Endpoint remoteEndpoint=session.getEndpoint();
+		if(session.getPathType()!=Session.RELAYED)
+			evict(remoteEndpoint);
+		lanes.forEach((controller,laneRUDP)->{
+			Endpoint laneEndpoint=session.getLaneEndpoint(controller);
+			if(laneEndpoint!=null)
+				laneRUDP.evict(laneEndpoint);
+		});
+	}
+	
+	/**
+	 * Forget the state of the main socket for an endpoint, unless a session or a server uses it
+	 * @param endpoint the remote endpoint
+	 */
+	private void evict(Endpoint endpoint){
+		if(endpoint==null || endpoint.equals(STUNServerEndpoint) || endpoint.equals(TURNServerEndpoint))
+			return;
+		for(Session session:sessions.values())
+			if(endpoint.equals(session.getEndpoint()))
+				return;
+		mainRUDP.evict(endpoint);
+	}
+	
+	/**
+	 * Test connectivity, determining the remote endpoint of the session to send message
 	 * P2P model: connect with public or private endpoint of remote side
 	 * C/S model: require relay Server to exchange messages
+	 * The relay server relays to one user, so relaying a user ends the session relayed to another one
 	 * 
 	 * @param remoteUserId the remote user id
-	 * @return  true if success 
+	 * @return  the session with the remote user, null if not reachable
 	 */
-	private boolean testConnect(String remoteUserId){
+	private Session testConnect(String remoteUserId){
 		NetworkInfo remoteNetworkInfo=stunServerClient.getInfo(remoteUserId);		
 		if(remoteNetworkInfo!=null){
 			Endpoint privateEndpoint=remoteNetworkInfo.getPrivateEndpoint();
@@ -308,16 +516,24 @@ public class CentralController extends AbstractController{
 				System.out.println("Test private connection: "+testPrivateResult);
 				System.out.println("Test public connection: "+testPublicResult);
 						
-				
+				// the lanes of the session are negotiated again on the new path
+				Session session=sessions.computeIfAbsent(remoteUserId, Session::new);
 				if(testPrivateResult==true)
-					remoteEndpoint=privateEndpoint;
+					session.setPath(privateEndpoint,Session.PRIVATE);
 				else if(testPublicResult==true)
-					remoteEndpoint=publicEndpoint;
+					session.setPath(publicEndpoint,Session.PUBLIC);
 				else{
 					System.out.println("Cannot connect the remote user!!!!");
 					System.out.println("Connect through relay server!");
-					if(this.turnServerClient.relay(publicEndpoint))
-						remoteEndpoint=TURNServerEndpoint;
+					if(this.turnServerClient.relay(publicEndpoint)){
+						sessions.values().forEach(other->{
+							if(other!=session && other.getPathType()==Session.RELAYED)
+								close(other);
+						});
+						session.setPath(TURNServerEndpoint,Session.RELAYED);
+					}
+					else
+						session.setPath(null,-1);
 				}
 				
 				/*
@@ -330,13 +546,24 @@ public class CentralController extends AbstractController{
 					return false;
 				}*/
 				
-				controllers.forEach(controller->controller.setRemoteEndpoint(remoteEndpoint));
-				return true;
+				// the endpoints probed but not taken
+				if(!privateEndpoint.equals(session.getEndpoint()))
+					evict(privateEndpoint);
+				if(!publicEndpoint.equals(session.getEndpoint()))
+					evict(publicEndpoint);
+				
+				if(session.getEndpoint()==null){
+					close(session);
+					return null;
+				}
+				if(session.getPathType()!=Session.RELAYED)
+					mainRUDP.addBatchEndpoint(session.getEndpoint());
+				return session;
 			}catch(Exception e){
 				e.printStackTrace();
 			}
 		}
-		return false;
+		return null;
 	}
 	
 	/**
@@ -346,6 +573,8 @@ public class CentralController extends AbstractController{
 		turnServerClient.unrelay();
 		stunServerClient.unregister();
 		scheduler.shutdown();
+		connectExecutor.shutdown();
+		lanes.values().forEach(laneRUDP->laneRUDP.stop());
 		mainRUDP.stop();
 	}
 	
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package controller;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import network.address.Endpoint;
+
+/**
+ * Conversation with one remote user, one of the concurrent sessions of the central controller
+ * The registered controllers send to every connected session, each through its own path and lanes
+ */
+public class Session {
+	// paths to the remote user
+	public final static int PRIVATE=0;			// peer-to-peer, within the private network
+	public final static int PUBLIC=1;			// peer-to-peer, through the public endpoint of the remote NAT
+	public final static int RELAYED=2;			// through the TURN server
+	
+	private final String remoteUserId;
+	private volatile Endpoint endpoint;			// where messages to the remote user are sent
+	private volatile int pathType=-1;
+	private volatile boolean isConnected=false;
+	private Map<AbstractController,Endpoint> laneEndpoints=new ConcurrentHashMap<>();	// remote lane of each controller, once negotiated
+	
+	/**
+	 * Constructor
+	 * @param remoteUserId the remote user id
+	 */
+	Session(String remoteUserId){
+		this.remoteUserId=remoteUserId;
+	}
+	
+	/**
+	 * Get the remote user id
+	 * @return the remote user id
+	 */
+	public String getRemoteUserId(){
+		return remoteUserId;
+	}
+	
+	/**
+	 * Get the endpoint of the remote user
+	 * @return the endpoint, the TURN server if relayed, null if not reachable
+	 */
+	public Endpoint getEndpoint(){
+		return endpoint;
+	}
+	
+	/**
+	 * Get the path to the remote user
+	 * @return PRIVATE, PUBLIC or RELAYED, -1 if not reachable
+	 */
+	public int getPathType(){
+		return pathType;
+	}
+	
+	/**
+	 * Check the conversation established or not
+	 * @return true if connected
+	 */
+	public boolean isConnected(){
+		return isConnected;
+	}
+	
+	/**
+	 * Set the path found to the remote user, the lanes are negotiated again
+	 * @param endpoint the endpoint
+	 * @param pathType PRIVATE, PUBLIC or RELAYED
+	 */
+	void setPath(Endpoint endpoint, int pathType){
+		this.endpoint=endpoint;
+		this.pathType=pathType;
+		laneEndpoints.clear();
+	}
+	
+	void setConnected(boolean isConnected){
+		this.isConnected=isConnected;
+	}
+	
+	/**
+	 * Get the remote lane of a controller
+	 * @param controller the controller
+	 * @return the remote lane endpoint, null to send through the main socket
+	 */
+	Endpoint getLaneEndpoint(AbstractController controller){
+		return laneEndpoints.get(controller);
+	}
+	
+	/**
+	 * Set the remote lane of a controller
+	 * @param controller the controller
+	 * @param laneEndpoint the remote lane endpoint, null to send through the main socket
+	 */
+	void setLaneEndpoint(AbstractController controller, Endpoint laneEndpoint){
+		if(laneEndpoint!=null)
+			laneEndpoints.put(controller, laneEndpoint);
+		else
+			laneEndpoints.remove(controller);
+	}
+}
@@ -19,7 +19,6 @@ import java.util.HashMap;
 import java.util.List;
 
 import network.Handler;
-import network.assist.Serializer;
 import network.protocol.Event;
 import network.protocol.TouchFlag;
 import network.protocol.Payload;
@@ -60,7 +59,7 @@ public class TouchController extends AbstractController{
 	 */
 	public void registerControllerHandler(){
 		Handler handler=(message)->{				
-			Payload payload= (Payload)Serializer.read(message.getPayload(),Payload.class);	
+			Payload payload=message.getPayload(Payload.class);	
 			switch(payload.getFlag()){
 				case TouchFlag.CONFIG:{
 					@SuppressWarnings("unchecked")
@@ -97,8 +96,7 @@ public class TouchController extends AbstractController{
 	 * @param configuration path configuration
 	 */
 	public void configure(HashMap<String,String> configuration){				
-		this.sendReliableMessage(Event.TOUCH, Serializer.write(
-			new Payload(TouchFlag.CONFIG,configuration)),null);
+		this.sendReliableMessage(Event.TOUCH, new Payload(TouchFlag.CONFIG,configuration),null);
 	}
 	
 	/**
@@ -124,8 +122,7 @@ public class TouchController extends AbstractController{
 	 * End path and send "PATH" message
 	 */
 	public void endPath(){
-		this.sendReliableMessage(Event.TOUCH, Serializer.write(
-			new Payload(TouchFlag.ADD,currentPoints)),null);
+		this.sendReliableMessage(Event.TOUCH, new Payload(TouchFlag.ADD,currentPoints),null);
 	}
 	
 	/**
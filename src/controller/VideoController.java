@@ -27,6 +27,7 @@ import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageOutputStream;
 import network.Handler;
+import network.assist.Threads;
 import network.protocol.Event;
 import org.imgscalr.Scalr;
 import org.imgscalr.Scalr.Rotation;
@@ -50,6 +51,12 @@ public class VideoController extends AbstractController{
 	private int period=300;      // period to capture image
 	private float quality=.2f;   // image quality, in terms of compression level, the high the better
 	
+	// lowered to the estimated bandwidth: the quality first, then the frame rate
+	private int sendPeriod=period;       // current period, not shorter than "period"
+	private float sendQuality=quality;   // current quality, not higher than "quality"
+	private final static float MIN_QUALITY=.05f;  // quality below which the frame rate is lowered instead
+	private final static int MAX_PERIOD=2000;     // longest period, so one frame still goes through this often
+	
 	/*
 	 * Constructor
 	 */
@@ -85,6 +92,7 @@ public class VideoController extends AbstractController{
 	 */
 	public void setPeriod(int period){
 		this.period=period;
+		this.sendPeriod=period;
 	}
 	
 	/**
@@ -93,6 +101,7 @@ public class VideoController extends AbstractController{
 	 */
 	public void setQuality(float quality){
 		this.quality=quality;
+		this.sendQuality=quality;
 	}
 	
 	/**
@@ -161,25 +170,19 @@ public class VideoController extends AbstractController{
 							if(rotated)
 								bufferedImage=Scalr.rotate(bufferedImage, Rotation.CW_270);
 							
-							ByteArrayOutputStream out = new ByteArrayOutputStream();
-						    ImageOutputStream ios = ImageIO.createImageOutputStream(out);
-							          
-						    // compress the image to "jpeg" type
-						    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
-						    ImageWriter writer = writers.next();
-						            
-						    // set quality of image
-						    ImageWriteParam param = writer.getDefaultWriteParam();
-						    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-						    param.setCompressionQuality(quality);
-						    writer.setOutput(ios);
-						    writer.write(null, new IIOImage(bufferedImage, null, null), param);	
-						    writer.dispose(); 	
-						    
-							byte tempBuffer[]=out.toByteArray();
-														
-							out.flush();											    					    
-							out.close();
+							byte tempBuffer[]=encode(bufferedImage,sendQuality);
+							
+							// fit the next frames to the estimated bandwidth
+							long bandwidth=getEstimatedBandwidth();
+							adapt(tempBuffer.length,bandwidth);
+							
+							// spread the datagrams of the frame over half the period, leaving room for audio and touch
+							// or slower down to the estimated bandwidth, but no slower than one frame in the longest period
+							// the rate is shared by the copies of the frame sent to each session
+							long frameRate=tempBuffer.length*1000L/Math.max(1, sendPeriod);
+							long minRate=tempBuffer.length*1000L/MAX_PERIOD;
+							long rate=bandwidth>0?Math.max(minRate, Math.min(2*frameRate, bandwidth)):2*frameRate;
+							setPacingRate(Event.VIDEO,rate*Math.max(1, getSessionNum()));
 							sendMessage(Event.VIDEO,tempBuffer);
 							BufferedImage bImage=bufferedImage;
 							outHooks.forEach(outHook->{
@@ -187,7 +190,7 @@ public class VideoController extends AbstractController{
 							});
 						}
 					  }    
-					Thread.sleep(period);
+					Thread.sleep(sendPeriod);
 					} catch (Exception e) {
 						e.printStackTrace();
 					} 
@@ -195,7 +198,59 @@ public class VideoController extends AbstractController{
 			}
 			
 		};
-		new Thread(videoTransmit).start();
+		Threads.start(videoTransmit,"Video transmit");
+	}
+	
+	/**
+	 * Lower the quality, then the frame rate, while frames are larger than the bandwidth carries in a period,
+	 * and raise them back in the reverse order once frames take less than half of it
+	 * @param frameSize the size of the last frame in bytes
+	 * @param bandwidth the estimated bandwidth in bytes per second, negative if not known yet
+	 */
+	private void adapt(int frameSize, long bandwidth){
+		if(bandwidth<=0)
+			return;
+		float minQuality=Math.min(quality, MIN_QUALITY);
+		long budget=bandwidth*sendPeriod/1000;
+		if(frameSize>budget){
+			if(sendQuality>minQuality)
+				sendQuality=Math.max(minQuality, sendQuality*.8f);
+			else
+				sendPeriod=(int)Math.max(period, Math.min(MAX_PERIOD, frameSize*1000L/bandwidth));
+		}
+		else if(frameSize<budget/2){
+			if(sendPeriod>period)
+				sendPeriod=Math.max(period, sendPeriod*4/5);
+			else if(sendQuality<quality)
+				sendQuality=Math.min(quality, sendQuality*1.1f);
+		}
+	}
+	
+	/**
+	 * Compress the image to "jpeg" type
+	 * @param image the image
+	 * @param quality the image quality, between 0 and 1
+	 * @return the compressed image
+	 * @throws IOException if the image cannot be written
+	 */
+	public static byte[] encode(BufferedImage image, float quality) throws IOException{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    ImageOutputStream ios = ImageIO.createImageOutputStream(out);
+		          
+	    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+	    ImageWriter writer = writers.next();
+	            
+	    // set quality of image
+	    ImageWriteParam param = writer.getDefaultWriteParam();
+	    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+	    param.setCompressionQuality(quality);
+	    writer.setOutput(ios);
+	    writer.write(null, new IIOImage(image, null, null), param);	
+	    writer.dispose(); 	
+	    
+		byte data[]=out.toByteArray();
+		out.close();
+		return data;
 	}
 	
 	/**
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Arrivals of stamped datagrams from one endpoint, reported back to the sender periodically
+ * The one-way delay includes the unknown offset between the two clocks, only its changes are meaningful
+ */
+class ArrivalMonitor {
+	final static int REPORT_SIZE=12;
+
+	private int bytes=0;						// received since the last report
+	private long firstArrival;					// in microseconds
+	private long lastArrival;
+	private int minDelay;						// lowest one-way delay since the last report, in microseconds
+
+	/**
+	 * Record a stamped datagram
+	 * @param timestamp the sending time in microseconds of the sender clock
+	 * @param size the datagram size
+	 */
+	synchronized void arrived(int timestamp, int size){
+		long now=System.nanoTime()/1000;
+		int delay=(int)now-timestamp;		// wraps around with the clocks
+		if(bytes==0){
+			firstArrival=now;
+			minDelay=delay;
+		}
+		else if(delay-minDelay<0)
+			minDelay=delay;
+		lastArrival=now;
+		bytes+=size;
+	}
+
+	/**
+	 * Take the report of the arrivals since the last one
+	 * @return the report, or null if nothing arrived
+	 */
+	synchronized byte[] report(){
+		if(bytes==0)
+			return null;
+		ByteBuffer report=ByteBuffer.allocate(REPORT_SIZE);
+		report.putInt(bytes);
+		report.putInt((int)(lastArrival-firstArrival));
+		report.putInt(minDelay);
+		bytes=0;
+		return report.array();
+	}
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Available bandwidth to one endpoint, estimated from the one-way delay reported by the receiver (as LEDBAT)
+ * A queuing delay below the target lets the rate grow, above the target makes it shrink before packets are lost
+ */
+public class BandwidthEstimator {
+	public final static int TARGET_DELAY=25000;		// queuing delay aimed at, in microseconds
+	public final static long MIN_RATE=16000;		// in bytes per second
+
+	private final static double MAX_INCREASE=0.08;	// per report, the rate doubles in about a second
+	private final static double MAX_DECREASE=0.5;	// per report
+	private final static double HEADROOM=1.5;		// the rate exceeds the received rate by at most this ratio
+	private final static int BASE_HISTORY=10;		// intervals of the base delay history
+	private final static long BASE_INTERVAL=60000000;	// in microseconds
+
+	private long rate=-1;							// in bytes per second, -1 before the first report
+	private long receiveRate=0;						// smoothed rate at the receiver, in bytes per second
+	private int queuingDelay=0;						// in microseconds
+	private int[] baseDelays=new int[BASE_HISTORY];	// lowest delay of each interval, the oldest first
+	private int baseNum=0;
+	private long baseTime;							// start of the current interval, in microseconds
+	private long reportNum=0;
+
+	/**
+	 * Update the estimate with a receiver report
+	 * @param report the report
+	 */
+	synchronized void update(byte[] report){
+		if(report==null || report.length<ArrivalMonitor.REPORT_SIZE)
+			return;
+		ByteBuffer buffer=ByteBuffer.wrap(report);
+		long bytes=buffer.getInt() & 0xffffffffL;
+		long duration=buffer.getInt() & 0xffffffffL;
+		int delay=buffer.getInt();
+
+		// the lowest delay in minutes is taken as the empty-queue delay, older ones fade out for route changes
+		long now=System.nanoTime()/1000;
+		if(baseNum==0 || now-baseTime>=BASE_INTERVAL){
+			if(baseNum==BASE_HISTORY){
+				System.arraycopy(baseDelays, 1, baseDelays, 0, BASE_HISTORY-1);
+				baseNum--;
+			}
+			baseDelays[baseNum++]=delay;
+			baseTime=now;
+		}
+		else if(delay-baseDelays[baseNum-1]<0)
+			baseDelays[baseNum-1]=delay;
+		int baseDelay=baseDelays[0];
+		for(int i=1;i<baseNum;i++){
+			if(baseDelays[i]-baseDelay<0)
+				baseDelay=baseDelays[i];
+		}
+		queuingDelay=delay-baseDelay;
+
+		// one datagram gives no duration, its rate is unknown
+		if(duration>0){
+			long sample=bytes*1000000/duration;
+			receiveRate=receiveRate==0?sample:(7*receiveRate+sample)/8;
+		}
+
+		if(rate<0)
+			rate=Math.max(MIN_RATE, receiveRate);
+		else{
+			double offTarget=Math.max(-1, Math.min(1, (TARGET_DELAY-queuingDelay)/(double)TARGET_DELAY));
+			rate=(long)(rate*(1+(offTarget>0?MAX_INCREASE:MAX_DECREASE)*offTarget));
+		}
+		// no more is known than a bit above what gets through
+		if(receiveRate>0)
+			rate=Math.min(rate, (long)(receiveRate*HEADROOM)+MIN_RATE);
+		rate=Math.max(MIN_RATE, rate);
+		reportNum++;
+	}
+
+	/**
+	 * Get the estimated available bandwidth
+	 * @return the bandwidth in bytes per second, -1 if not estimated yet
+	 */
+	public synchronized long getEstimatedBandwidth(){
+		return rate;
+	}
+
+	/**
+	 * Get the rate at which the receiver gets the datagrams
+	 * @return the rate in bytes per second
+	 */
+	public synchronized long getReceiveRate(){
+		return receiveRate;
+	}
+
+	/**
+	 * Get the queuing delay, above the lowest one-way delay seen
+	 * @return the delay in microseconds
+	 */
+	public synchronized int getQueuingDelay(){
+		return queuingDelay;
+	}
+
+	/**
+	 * Check whether any report has been received
+	 * @return true if estimated
+	 */
+	public synchronized boolean hasEstimate(){
+		return reportNum>0;
+	}
+}
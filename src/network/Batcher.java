@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import network.address.Endpoint;
+import network.assist.Serializer;
+import network.protocol.Message;
+
+/**
+ * Packing small messages sent to the same endpoint into one datagram
+ * A batch is sent once the next message does not fit, or when the flush window since its first message ends
+ * Only endpoints known to unpack batches are batched, the others are written at once
+ */
+class Batcher {
+	private final static int HEADER_SIZE=40;			// room for the header of a batch
+	private final static int LENGTH_SIZE=2;				// each message is prefixed with its length
+	
+	// flushes of all instances, the timing wheel is too coarse for a window in microseconds
+	private final static ScheduledExecutorService flusher=Executors.newSingleThreadScheduledExecutor(runnable->{
+		Thread thread=new Thread(runnable,"RUDP batcher");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private Map<Endpoint,Batch> batches=new ConcurrentHashMap<>();	// pending batch of each batched endpoint
+	private Writer writer;
+	private volatile int window=0;						// flush window in microseconds, 0 to disable
+	private volatile int maxSize;						// max datagram size
+	
+	/**
+	 * Who puts a datagram on the wire
+	 */
+	interface Writer{
+		void write(byte[] data, Endpoint receiver) throws IOException;
+	}
+	
+	/**
+	 * Constructor
+	 * @param writer who writes the datagrams
+	 * @param maxSize the max datagram size
+	 */
+	Batcher(Writer writer, int maxSize){
+		this.writer=writer;
+		this.maxSize=maxSize;
+	}
+	
+	/**
+	 * Set the flush window
+	 * @param window the max delay of a message in microseconds, 0 to disable batching
+	 */
+	void setWindow(int window){
+		this.window=Math.max(0, window);
+		if(this.window==0)
+			batches.keySet().forEach(this::flush);
+	}
+	
+	/**
+	 * Set the max datagram size, taking effect from the next batch
+	 * @param maxSize the max datagram size
+	 */
+	void setMaxSize(int maxSize){
+		this.maxSize=maxSize;
+	}
+	
+	/**
+	 * Check messages sent to the endpoint batched or not
+	 * @param endpoint the endpoint
+	 * @return true if batched
+	 */
+	boolean isBatched(Endpoint endpoint){
+		return window>0 && batches.containsKey(endpoint);
+	}
+	
+	/**
+	 * Batch messages sent to the endpoint from now on
+	 * @param endpoint the endpoint which unpacks batches
+	 */
+	void add(Endpoint endpoint){
+		batches.putIfAbsent(endpoint, new Batch(endpoint));
+	}
+	
+	/**
+	 * Stop batching messages sent to the endpoint, sending the pending ones
+	 * @param endpoint the endpoint
+	 */
+	void remove(Endpoint endpoint){
+		flush(endpoint);
+		batches.remove(endpoint);
+	}
+	
+	/**
+	 * Send a serialized message fitting in one datagram, batched if possible
+	 * @param data the serialized message
+	 * @param receiver the receiver endpoint
+	 * @throws IOException if the socket fails
+	 */
+	void send(byte[] data, Endpoint receiver) throws IOException{
+		int window=this.window;
+		Batch batch=window==0?null:batches.get(receiver);
+		if(batch==null){
+			writer.write(data, receiver);
+			return;
+		}
+		synchronized(batch){
+			// too large messages are sent alone, after the pending ones to keep the order
+			if(data.length+LENGTH_SIZE>maxSize-HEADER_SIZE){
+				batch.flush();
+				writer.write(data, receiver);
+				return;
+			}
+			if(!batch.fits(data.length))
+				batch.flush();
+			if(batch.add(data)){
+				int generation=batch.generation;
+				flusher.schedule(()->{
+					synchronized(batch){
+						if(batch.generation==generation)
+							batch.flushQuietly();
+					}
+				}, window, TimeUnit.MICROSECONDS);
+			}
+		}
+	}
+	
+	/**
+	 * Send the pending messages to the endpoint at once
+	 * @param receiver the receiver endpoint
+	 */
+	void flush(Endpoint receiver){
+		Batch batch=batches.get(receiver);
+		if(batch!=null){
+			synchronized(batch){
+				batch.flushQuietly();
+			}
+		}
+	}
+	
+	/**
+	 * Unpack a received batch
+	 * @param batch the batch message
+	 * @param consumer who takes each message, with its serialized bytes from the position to the limit of the buffer
+	 */
+	static void unpack(Message batch, BiConsumer<Message,ByteBuffer> consumer){
+		byte[] payload=batch.getPayload();
+		int offset=0;
+		while(offset+LENGTH_SIZE<=payload.length){
+			int length=((payload[offset] & 0xff)<<8) | (payload[offset+1] & 0xff);
+			offset+=LENGTH_SIZE;
+			if(offset+length>payload.length)
+				return;
+			ByteBuffer data=ByteBuffer.wrap(payload, offset, length);
+			Message message=(Message)Serializer.read(data, Message.class);
+			data.limit(offset+length);
+			data.position(offset);
+			consumer.accept(message, data);
+			offset+=length;
+		}
+	}
+	
+	/**
+	 * Messages waiting to be sent to one endpoint, guarded by itself
+	 */
+	private class Batch{
+		final Endpoint receiver;
+		byte[] buffer=new byte[0];
+		int size=0;
+		int num=0;
+		byte[] first;						// sent alone if no other message joins
+		int generation=0;					// incremented once flushed, so stale flushes are ignored
+		
+		Batch(Endpoint receiver){
+			this.receiver=receiver;
+		}
+		
+		boolean fits(int length){
+			return size+LENGTH_SIZE+length<=maxSize-HEADER_SIZE;
+		}
+		
+		/**
+		 * Append a message
+		 * @return true if it is the first message of the batch
+		 */
+		boolean add(byte[] data){
+			if(num==0 && buffer.length<maxSize-HEADER_SIZE)
+				buffer=new byte[maxSize-HEADER_SIZE];
+			buffer[size]=(byte)(data.length>>>8);
+			buffer[size+1]=(byte)data.length;
+			System.arraycopy(data, 0, buffer, size+LENGTH_SIZE, data.length);
+			size+=LENGTH_SIZE+data.length;
+			if(num++==0){
+				first=data;
+				return true;
+			}
+			return false;
+		}
+		
+		void flush() throws IOException{
+			if(num==0)
+				return;
+			byte[] data=first;
+			if(num>1){
+				Message batch=Message.batch(Arrays.copyOf(buffer, size));
+				batch.setTimestamp();
+				data=Serializer.write(batch);
+			}
+			size=0;
+			num=0;
+			first=null;
+			generation++;
+			writer.write(data, receiver);
+		}
+		
+		void flushQuietly(){
+			try {
+				flush();
+			} catch (Exception e) {
+				//e.printStackTrace();
+			}
+		}
+	}
+}
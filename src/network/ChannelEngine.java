@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+
+import network.assist.ByteBufferPool;
+
+/**
+ * Non-blocking datagram channels served by one selector thread
+ * Datagrams are read into one direct buffer, which the receiver must consume before returning
+ */
+class ChannelEngine implements Runnable {
+	private final static int MAX_READS=64;									// datagrams read from one channel per round, so none starves the others
+
+	private Selector selector;
+	private ByteBuffer buffer;												// receive buffer, only used by the engine thread
+	private Queue<Registration> registrations=new ConcurrentLinkedQueue<>();	// channels waiting to be registered
+
+	/**
+	 * Constructor, starting the engine thread
+	 * @param pool the pool of the receive buffer
+	 * @param name the thread name
+	 * @throws IOException if the selector cannot be opened
+	 */
+	ChannelEngine(ByteBufferPool pool, String name) throws IOException{
+		this.selector=Selector.open();
+		this.buffer=pool.acquire();
+		Thread thread=new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Serve a channel until it is closed
+	 * @param channel the channel, switched to non-blocking
+	 * @param receiver who takes each datagram and its sender
+	 * @throws IOException if the channel cannot be configured
+	 */
+	void register(DatagramChannel channel, BiConsumer<ByteBuffer,InetSocketAddress> receiver) throws IOException{
+		channel.configureBlocking(false);
+		registrations.add(new Registration(channel,receiver));
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while(true){
+			try {
+				selector.select();
+				Registration registration;
+				while((registration=registrations.poll())!=null){
+					if(registration.channel.isOpen())
+						registration.channel.register(selector, SelectionKey.OP_READ, registration.receiver);
+				}
+
+				Iterator<SelectionKey> keys=selector.selectedKeys().iterator();
+				while(keys.hasNext()){
+					SelectionKey key=keys.next();
+					keys.remove();
+					if(key.isValid() && key.isReadable())
+						read(key);
+				}
+			}
+			catch(ClosedSelectorException e){
+				return;
+			}
+			catch(Exception e){
+				//e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Drain the datagrams ready in the channel
+	 * @param key the selection key of the channel
+	 */
+	@SuppressWarnings("unchecked")
+	private void read(SelectionKey key){
+		DatagramChannel channel=(DatagramChannel) key.channel();
+		BiConsumer<ByteBuffer,InetSocketAddress> receiver=(BiConsumer<ByteBuffer,InetSocketAddress>) key.attachment();
+		for(int i=0;i<MAX_READS;i++){
+			InetSocketAddress sender;
+			try {
+				buffer.clear();
+				sender=(InetSocketAddress) channel.receive(buffer);
+			} catch (IOException e) {
+				// closed channels are deregistered by the selector
+				key.cancel();
+				return;
+			}
+			if(sender==null)
+				return;
+			buffer.flip();
+			try{
+				receiver.accept(buffer, sender);
+			}
+			catch(Exception e){
+				//e.printStackTrace();
+			}
+		}
+	}
+
+	private static class Registration{
+		final DatagramChannel channel;
+		final BiConsumer<ByteBuffer,InetSocketAddress> receiver;
+
+		Registration(DatagramChannel channel, BiConsumer<ByteBuffer,InetSocketAddress> receiver){
+			this.channel=channel;
+			this.receiver=receiver;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import network.address.Endpoint;
+import network.assist.ByteBufferPool;
+
+/**
+ * Transport over a non-blocking datagram channel, received by the selector thread shared by all channels
+ * Heap buffers are copied into pooled direct buffers before sending
+ */
+class ChannelTransport implements Transport {
+	private static ChannelEngine channelEngine;		// selector thread shared by all instances
+
+	private DatagramChannel channel;
+	private ByteBufferPool bufferPool;				// direct buffers for sending
+	private boolean isClosed=false;
+
+	/**
+	 * Constructor
+	 * @param port the port, 0 for any free port
+	 * @param bufferPool the pool of direct buffers
+	 * @throws IOException if the port cannot be bound
+	 */
+	ChannelTransport(int port, ByteBufferPool bufferPool) throws IOException{
+		this.channel=DatagramChannel.open();
+		this.channel.bind(new InetSocketAddress(port));
+		this.bufferPool=bufferPool;
+	}
+
+	@Override
+	public void listen(Receiver receiver) throws IOException{
+		getChannelEngine(bufferPool).register(channel, (buffer,address)->
+			receiver.receive(buffer, new Endpoint(address.getAddress(),address.getPort())));
+		synchronized(this){
+			while(!isClosed){
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void send(ByteBuffer data, Endpoint receiver) throws IOException{
+		InetSocketAddress address=new InetSocketAddress(receiver.getAddress(), receiver.getPort());
+		if(data.isDirect()){
+			channel.send(data, address);
+			return;
+		}
+		ByteBuffer buffer=bufferPool.acquire();
+		try{
+			buffer.put(data);
+			buffer.flip();
+			channel.send(buffer, address);
+		}
+		finally{
+			bufferPool.release(buffer);
+		}
+	}
+
+	@Override
+	public boolean isDirect(){
+		return true;
+	}
+
+	@Override
+	public Transport bind(int port) throws IOException{
+		return new ChannelTransport(port, bufferPool);
+	}
+
+	@Override
+	public int getLocalPort(){
+		return channel.socket().getLocalPort();
+	}
+
+	@Override
+	public void setBufferSize(int bufferSize){
+		try {
+			channel.socket().setReceiveBufferSize(bufferSize);
+			channel.socket().setSendBufferSize(bufferSize);
+		} catch (IOException e) {
+			//e.printStackTrace();
+		}
+	}
+
+	@Override
+	public synchronized void close(){
+		isClosed=true;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			//e.printStackTrace();
+		}
+		notifyAll();
+	}
+
+	private synchronized static ChannelEngine getChannelEngine(ByteBufferPool bufferPool) throws IOException{
+		if(channelEngine==null)
+			channelEngine=new ChannelEngine(bufferPool,"RUDP channel engine");
+		return channelEngine;
+	}
+}
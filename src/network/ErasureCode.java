@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import network.protocol.Message;
+
+/**
+ * Erasure codes over groups of datagrams, computing parity symbols from which lost datagrams are rebuilt
+ * A datagram is coded as a symbol of its length in two bytes followed by its bytes, zero padded to the longest one
+ * The timestamp patched into a datagram when sent is left out, being different in each copy of it
+ * With XOR the single parity is the sum of the symbols, recovering one loss
+ * With Reed-Solomon each parity is a sum weighted by a row of a Cauchy matrix over GF(256),
+ * so any k of the k data and m parity symbols are enough to rebuild the data
+ */
+class ErasureCode {
+	final static int XOR=1;
+	final static int REED_SOLOMON=2;
+
+	final static int MAX_GROUP=128;					// max data symbols of a group, and max parity symbols
+	private final static int POLYNOMIAL=0x11d;		// x^8+x^4+x^3+x^2+1
+
+	private final static byte[] EXP=new byte[512];
+	private final static int[] LOG=new int[256];
+	private final static byte[][] MUL=new byte[256][256];	// product table, so coding a byte takes one lookup
+
+	static{
+		int x=1;
+		for(int i=0;i<255;i++){
+			EXP[i]=EXP[i+255]=(byte)x;
+			LOG[x]=i;
+			x<<=1;
+			if(x>=256)
+				x^=POLYNOMIAL;
+		}
+		for(int a=1;a<256;a++)
+			for(int b=1;b<256;b++)
+				MUL[a][b]=EXP[LOG[a]+LOG[b]];
+	}
+
+	/**
+	 * Get the weight of a data symbol in a parity symbol, the same whatever the group size
+	 * so a group closed before being full is coded as a smaller one
+	 * @param code XOR or REED_SOLOMON
+	 * @param j the parity index
+	 * @param i the data index
+	 * @return the weight
+	 */
+	static int coefficient(int code, int j, int i){
+		if(code==XOR)
+			return 1;
+		return inverse((MAX_GROUP+j)^i);
+	}
+
+	/**
+	 * Get the symbol size of a datagram
+	 * @param length the datagram length
+	 * @return the size
+	 */
+	static int symbolSize(int length){
+		return length+2;
+	}
+
+	/**
+	 * Add the weighted symbol of a datagram to a parity symbol
+	 * @param parity the parity symbol, at least as long as the symbol of the datagram
+	 * @param coefficient the weight
+	 * @param data the datagram
+	 */
+	static void accumulate(byte[] parity, int coefficient, byte[] data){
+		byte[] row=MUL[coefficient];
+		parity[0]^=row[(data.length>>>8)&0xff];
+		parity[1]^=row[data.length&0xff];
+		boolean isStamped=Message.isStamped(data);
+		for(int i=0;i<data.length;i++){
+			if(isStamped && i>=1 && i<=4)
+				continue;
+			parity[i+2]^=row[data[i]&0xff];
+		}
+	}
+
+	/**
+	 * Rebuild lost datagrams of a group
+	 * @param code XOR or REED_SOLOMON
+	 * @param data the datagrams of the group by index, null if lost
+	 * @param parityIndexes the indexes of the received parity symbols, at least as many as the lost datagrams
+	 * @param paritySymbols the received parity symbols, all of the same size
+	 * @return the rebuilt datagrams, in the order of their indexes, null if the symbols are inconsistent
+	 */
+	static byte[][] decode(int code, byte[][] data, int[] parityIndexes, byte[][] paritySymbols){
+		int k=data.length;
+		int lostNum=0;
+		for(byte[] datagram:data)
+			if(datagram==null)
+				lostNum++;
+		int[] lost=new int[lostNum];
+		for(int i=0, n=0;i<k;i++)
+			if(data[i]==null)
+				lost[n++]=i;
+		
+		// parity minus the received datagrams leaves the weighted sum of the lost ones
+		int size=paritySymbols[0].length;
+		byte[][] remainders=new byte[lostNum][];
+		int[][] matrix=new int[lostNum][lostNum];
+		for(int t=0;t<lostNum;t++){
+			remainders[t]=paritySymbols[t].clone();
+			for(int i=0;i<k;i++){
+				if(data[i]==null)
+					continue;
+				if(symbolSize(data[i].length)>size)
+					return null;
+				accumulate(remainders[t], coefficient(code,parityIndexes[t],i), data[i]);
+			}
+			for(int u=0;u<lostNum;u++)
+				matrix[t][u]=coefficient(code,parityIndexes[t],lost[u]);
+		}
+		int[][] inverse=invert(matrix);
+		if(inverse==null)
+			return null;
+		
+		byte[][] rebuilt=new byte[lostNum][];
+		for(int u=0;u<lostNum;u++){
+			byte[] symbol=new byte[size];
+			for(int t=0;t<lostNum;t++){
+				byte[] row=MUL[inverse[u][t]];
+				byte[] remainder=remainders[t];
+				for(int b=0;b<size;b++)
+					symbol[b]^=row[remainder[b]&0xff];
+			}
+			int length=((symbol[0]&0xff)<<8)|(symbol[1]&0xff);
+			if(symbolSize(length)>size)
+				return null;
+			rebuilt[u]=new byte[length];
+			System.arraycopy(symbol, 2, rebuilt[u], 0, length);
+		}
+		return rebuilt;
+	}
+
+	/**
+	 * Invert a matrix by Gauss-Jordan elimination
+	 * @param matrix the square matrix
+	 * @return the inverse, null if singular
+	 */
+	private static int[][] invert(int[][] matrix){
+		int n=matrix.length;
+		int[][] a=new int[n][];
+		int[][] inverse=new int[n][n];
+		for(int i=0;i<n;i++){
+			a[i]=matrix[i].clone();
+			inverse[i][i]=1;
+		}
+		for(int column=0;column<n;column++){
+			int pivot=column;
+			while(pivot<n && a[pivot][column]==0)
+				pivot++;
+			if(pivot==n)
+				return null;
+			int[] swap=a[pivot]; a[pivot]=a[column]; a[column]=swap;
+			swap=inverse[pivot]; inverse[pivot]=inverse[column]; inverse[column]=swap;
+			
+			int scale=inverse(a[column][column]);
+			for(int c=0;c<n;c++){
+				a[column][c]=multiply(a[column][c], scale);
+				inverse[column][c]=multiply(inverse[column][c], scale);
+			}
+			for(int row=0;row<n;row++){
+				int factor=a[row][column];
+				if(row==column || factor==0)
+					continue;
+				for(int c=0;c<n;c++){
+					a[row][c]^=multiply(factor, a[column][c]);
+					inverse[row][c]^=multiply(factor, inverse[column][c]);
+				}
+			}
+		}
+		return inverse;
+	}
+
+	private static int multiply(int a, int b){
+		return MUL[a][b]&0xff;
+	}
+
+	private static int inverse(int a){
+		return EXP[255-LOG[a]]&0xff;
+	}
+}
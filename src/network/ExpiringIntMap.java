@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Map from message id to pending state, bounded in size and expiring entries after their lifetime
+ * Keys are primitive ints in open-addressing tables, so lookups neither box nor allocate
+ * The keys are spread over independently locked stripes, so threads rarely contend
+ */
+class ExpiringIntMap<V> {
+	private final static int STRIPE_SHIFT=4;
+	private final static int STRIPES=1<<STRIPE_SHIFT;
+	private final static int INITIAL_CAPACITY=16;		// slots of a stripe, grown up to the max capacity
+
+	private final Stripe<V>[] stripes;
+	private final Consumer<V> expiryHandler;			// told about entries expired or evicted, never about removed ones
+
+	/**
+	 * Constructor
+	 * @param maxSize max entries, the ones closest to expiry are evicted beyond it
+	 * @param expiryHandler handler of expired and evicted values, called without holding any lock
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	ExpiringIntMap(int maxSize, Consumer<V> expiryHandler){
+		this.expiryHandler=expiryHandler;
+		int stripeSize=Math.max(1, (maxSize+STRIPES-1)/STRIPES);
+		this.stripes=new Stripe[STRIPES];
+		for(int i=0;i<STRIPES;i++)
+			stripes[i]=new Stripe<>(stripeSize);
+	}
+
+	/**
+	 * Put a value, replacing the previous value of the key
+	 * @param key the key
+	 * @param value the value, not null
+	 * @param lifetime time in milliseconds after which the entry expires
+	 * @return the replaced value, or null
+	 */
+	V put(int key, V value, long lifetime){
+		int hash=hash(key);
+		Stripe<V> stripe=stripes[hash>>>(Integer.SIZE-STRIPE_SHIFT)];
+		V evicted;
+		V previous;
+		synchronized(stripe){
+			evicted=stripe.isFull()?stripe.evict(now()):null;
+			previous=stripe.put(key, hash, value, now()+lifetime);
+		}
+		if(evicted!=null)
+			expiryHandler.accept(evicted);
+		return previous;
+	}
+
+	/**
+	 * Get the value of a key, expired entries are absent
+	 * @param key the key
+	 * @return the value, or null
+	 */
+	V get(int key){
+		int hash=hash(key);
+		Stripe<V> stripe=stripes[hash>>>(Integer.SIZE-STRIPE_SHIFT)];
+		synchronized(stripe){
+			int slot=stripe.find(key, hash);
+			if(slot<0 || stripe.deadlines[slot]-now()<0)
+				return null;
+			return stripe.valueAt(slot);
+		}
+	}
+
+	/**
+	 * Remove the value of a key, the expiry handler is not called
+	 * @param key the key
+	 * @return the removed value, or null
+	 */
+	V remove(int key){
+		int hash=hash(key);
+		Stripe<V> stripe=stripes[hash>>>(Integer.SIZE-STRIPE_SHIFT)];
+		synchronized(stripe){
+			int slot=stripe.find(key, hash);
+			if(slot<0)
+				return null;
+			V value=stripe.valueAt(slot);
+			stripe.delete(slot);
+			return value;
+		}
+	}
+
+	/**
+	 * Remove the expired entries, passing them to the expiry handler
+	 */
+	void expire(){
+		List<V> expired=new ArrayList<>();
+		for(Stripe<V> stripe:stripes)
+			synchronized(stripe){
+				stripe.expire(now(), expired);
+			}
+		expired.forEach(expiryHandler);
+	}
+
+	/**
+	 * Remove all entries
+	 * @param consumer consumer of the removed values, called without holding any lock
+	 */
+	void clear(Consumer<V> consumer){
+		List<V> removed=new ArrayList<>();
+		for(Stripe<V> stripe:stripes)
+			synchronized(stripe){
+				stripe.expire(Long.MAX_VALUE, removed);
+			}
+		removed.forEach(consumer);
+	}
+
+	/**
+	 * Number of entries, including the expired ones not removed yet
+	 * @return the size
+	 */
+	int size(){
+		int size=0;
+		for(Stripe<V> stripe:stripes)
+			synchronized(stripe){
+				size+=stripe.size;
+			}
+		return size;
+	}
+
+	private static long now(){
+		return System.nanoTime()/1000000;
+	}
+
+	// spread the bits, the high ones select the stripe and the low ones the slot
+	private static int hash(int key){
+		int h=key*0x9E3779B9;
+		return h^(h>>>16);
+	}
+
+	/**
+	 * Linear probing table, deleted slots are refilled by shifting the following entries back
+	 */
+	private static class Stripe<V>{
+		private final int maxCapacity;			// slots, a power of two
+		private final int maxSize;				// max entries, keeping the table at most 3/4 full
+		private int[] keys=new int[INITIAL_CAPACITY];
+		private int[] hashes=new int[INITIAL_CAPACITY];
+		private Object[] values=new Object[INITIAL_CAPACITY];	// null marks a free slot
+		private long[] deadlines=new long[INITIAL_CAPACITY];	// expiry time in milliseconds
+		private int size=0;
+
+		Stripe(int maxSize){
+			int capacity=INITIAL_CAPACITY;
+			while(capacity*3/4<maxSize)
+				capacity<<=1;
+			this.maxCapacity=capacity;
+			this.maxSize=maxSize;
+		}
+
+		boolean isFull(){
+			return size>=maxSize;
+		}
+
+		int find(int key, int hash){
+			int mask=values.length-1;
+			for(int slot=hash&mask;values[slot]!=null;slot=(slot+1)&mask)
+				if(keys[slot]==key)
+					return slot;
+			return -1;
+		}
+
+		@SuppressWarnings("unchecked")
+		V valueAt(int slot){
+			return (V)values[slot];
+		}
+
+		V put(int key, int hash, V value, long deadline){
+			int slot=find(key, hash);
+			if(slot>=0){
+				V previous=valueAt(slot);
+				values[slot]=value;
+				deadlines[slot]=deadline;
+				return previous;
+			}
+			if((size+1)*4>values.length*3 && values.length<maxCapacity)
+				resize(values.length*2);
+			int mask=values.length-1;
+			for(slot=hash&mask;values[slot]!=null;slot=(slot+1)&mask);
+			keys[slot]=key;
+			hashes[slot]=hash;
+			values[slot]=value;
+			deadlines[slot]=deadline;
+			size++;
+			return null;
+		}
+
+		/**
+		 * Remove an expired entry if any, otherwise the one closest to expiry
+		 * @param now the current time
+		 * @return the evicted value
+		 */
+		V evict(long now){
+			int victim=-1;
+			for(int slot=0;slot<values.length;slot++){
+				if(values[slot]==null)
+					continue;
+				if(victim<0 || deadlines[slot]-deadlines[victim]<0)
+					victim=slot;
+				if(deadlines[victim]-now<0)
+					break;
+			}
+			V value=valueAt(victim);
+			delete(victim);
+			return value;
+		}
+
+		void expire(long now, List<V> expired){
+			for(int slot=0;slot<values.length;){
+				if(values[slot]!=null && (now==Long.MAX_VALUE || deadlines[slot]-now<0)){
+					expired.add(valueAt(slot));
+					delete(slot);
+					// another entry may have been shifted into the slot
+				}
+				else
+					slot++;
+			}
+		}
+
+		void delete(int slot){
+			int mask=values.length-1;
+			int next=slot;
+			while(true){
+				next=(next+1)&mask;
+				if(values[next]==null)
+					break;
+				// move back the entries whose probe sequence passes over the freed slot
+				int home=hashes[next]&mask;
+				if(((next-home)&mask)>=((next-slot)&mask)){
+					keys[slot]=keys[next];
+					hashes[slot]=hashes[next];
+					values[slot]=values[next];
+					deadlines[slot]=deadlines[next];
+					slot=next;
+				}
+			}
+			values[slot]=null;
+			size--;
+		}
+
+		private void resize(int capacity){
+			int[] oldKeys=keys;
+			int[] oldHashes=hashes;
+			Object[] oldValues=values;
+			long[] oldDeadlines=deadlines;
+			keys=new int[capacity];
+			hashes=new int[capacity];
+			values=new Object[capacity];
+			deadlines=new long[capacity];
+			int mask=capacity-1;
+			for(int i=0;i<oldValues.length;i++){
+				if(oldValues[i]==null)
+					continue;
+				int slot=oldHashes[i]&mask;
+				while(values[slot]!=null)
+					slot=(slot+1)&mask;
+				keys[slot]=oldKeys[i];
+				hashes[slot]=oldHashes[i];
+				values[slot]=oldValues[i];
+				deadlines[slot]=oldDeadlines[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import network.address.Endpoint;
+import network.protocol.Message;
+
+/**
+ * Rebuilding lost unreliable datagrams from the parity datagrams of their group, without a round trip
+ * Recent datagrams of the events a sender protects are kept, the events being learnt from its parity datagrams
+ * A group short of parity waits for more, or for its datagrams delayed behind the parity
+ * A datagram arriving after having been rebuilt is a duplicate and dropped
+ */
+class FECDecoder {
+	private final static int CACHE_SIZE=512;		// recent datagrams kept of each sender
+	private final static int MAX_GROUPS=32;			// groups of each sender waiting for more parity
+
+	private final Map<Endpoint,Source> sources=new ConcurrentHashMap<>();	// state of each sender
+	private final BiConsumer<Endpoint,byte[]> output;						// who takes the rebuilt datagrams
+
+	/**
+	 * Constructor
+	 * @param output who takes each rebuilt datagram, with its sender
+	 */
+	FECDecoder(BiConsumer<Endpoint,byte[]> output){
+		this.output=output;
+	}
+
+	/**
+	 * Forget the datagrams and pending groups of a sender
+	 * @param sender the sender endpoint
+	 */
+	void remove(Endpoint sender){
+		sources.remove(sender);
+	}
+
+	/**
+	 * Keep a received datagram for rebuilding the others of its group
+	 * @param sender the sender endpoint
+	 * @param message the deserialized datagram
+	 * @param data the datagram, from its position to its limit, not modified
+	 * @return false if the datagram has already been received or rebuilt
+	 */
+	boolean receive(Endpoint sender, Message message, ByteBuffer data){
+		if(message.isReliable() || message.getCode()==Message.PARITY || message.getCode()==Message.BATCH)
+			return true;
+		Source source=sources.get(sender);
+		if(source==null || message.getEvent()<0)
+			return true;
+		long key=message.getCode()==Message.FRAGMENT?key(message.getRepliedMessageId(),message.getFragmentIndex()):key(message.getId(),-1);
+		List<byte[]> recovered;
+		synchronized(source){
+			if(!source.events.get(message.getEvent()))
+				return true;
+			if(source.cache.containsKey(key))
+				return false;
+			byte[] copy=new byte[data.remaining()];
+			data.duplicate().get(copy);
+			source.cache.put(key, copy);
+			
+			// the datagram may complete a group whose parity came first
+			Long groupKey=source.awaited.remove(key);
+			Group group=groupKey!=null?source.groups.get(groupKey):null;
+			if(group==null)
+				return true;
+			recovered=source.decode(group);
+		}
+		recovered.forEach(datagram->output.accept(sender, datagram));
+		return true;
+	}
+
+	/**
+	 * Take in a parity datagram, rebuilding the lost datagrams of its group if it has enough parity
+	 * @param sender the sender endpoint
+	 * @param parity the PARITY message
+	 */
+	void recover(Endpoint sender, Message parity){
+		byte[] payload=parity.getPayload();
+		if(payload==null || payload.length<4 || parity.getEvent()<0)
+			return;
+		ByteBuffer buffer=ByteBuffer.wrap(payload);
+		int code=buffer.get();
+		int k=buffer.get()&0xff;
+		buffer.get();
+		int index=buffer.get()&0xff;
+		if(k==0 || payload.length<=FECEncoder.headerSize(k))
+			return;
+		long[] keys=new long[k];
+		for(int i=0;i<k;i++)
+			keys[i]=key(buffer.getInt(), buffer.getInt());
+		byte[] symbol=new byte[buffer.remaining()];
+		buffer.get(symbol);
+		
+		Source source=sources.computeIfAbsent(sender, key->new Source());
+		List<byte[]> recovered;
+		synchronized(source){
+			source.events.set(parity.getEvent());
+			Group group=source.groups.get(keys[0]);
+			if(group==null){
+				group=new Group(code, keys);
+				source.groups.put(keys[0], group);
+			}
+			if(group.symbols.putIfAbsent(index, symbol)!=null)
+				return;
+			recovered=source.decode(group);
+		}
+		recovered.forEach(datagram->output.accept(sender, datagram));
+	}
+
+	private static long key(int messageId, int fragmentIndex){
+		return ((long)messageId<<32)|(fragmentIndex&0xffffffffL);
+	}
+
+	/**
+	 * Group whose parity has arrived
+	 */
+	private static class Group{
+		private final int code;
+		private final long[] keys;								// key of each datagram of the group
+		private final Map<Integer,byte[]> symbols=new LinkedHashMap<>();	// received parity symbols by index
+
+		Group(int code, long[] keys){
+			this.code=code;
+			this.keys=keys;
+		}
+	}
+
+	/**
+	 * Protected datagrams and pending groups of one sender, guarded by itself
+	 */
+	private static class Source{
+		private final BitSet events=new BitSet();		// protected events
+		private final Map<Long,byte[]> cache=new LinkedHashMap<Long,byte[]>(){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long,byte[]> eldest){
+				return size()>CACHE_SIZE;
+			}
+		};
+		private final Map<Long,Group> groups=new LinkedHashMap<Long,Group>(){	// pending groups by the key of their first datagram
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long,Group> eldest){
+				return size()>MAX_GROUPS;
+			}
+		};
+		private final Map<Long,Long> awaited=new LinkedHashMap<Long,Long>(){	// group of each missing datagram of a pending group
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long,Long> eldest){
+				return size()>CACHE_SIZE;
+			}
+		};
+
+		/**
+		 * Rebuild the missing datagrams of a group if it has as many parity symbols, otherwise wait for them
+		 * @param group the group
+		 * @return the rebuilt datagrams, empty if none
+		 */
+		List<byte[]> decode(Group group){
+			List<byte[]> recovered=new ArrayList<>();
+			int k=group.keys.length;
+			byte[][] data=new byte[k][];
+			int lostNum=0;
+			for(int i=0;i<k;i++)
+				if((data[i]=cache.get(group.keys[i]))==null)
+					lostNum++;
+			if(lostNum>0 && group.symbols.size()<lostNum){
+				for(int i=0;i<k;i++)
+					if(data[i]==null)
+						awaited.put(group.keys[i], group.keys[0]);
+				return recovered;
+			}
+			groups.remove(group.keys[0]);
+			if(lostNum==0)
+				return recovered;
+			
+			int[] parityIndexes=new int[lostNum];
+			byte[][] paritySymbols=new byte[lostNum][];
+			int t=0;
+			for(Map.Entry<Integer,byte[]> entry:group.symbols.entrySet()){
+				if(t==lostNum)
+					break;
+				parityIndexes[t]=entry.getKey();
+				paritySymbols[t++]=entry.getValue();
+			}
+			for(byte[] symbol:paritySymbols)
+				if(symbol.length!=paritySymbols[0].length)
+					return recovered;
+			byte[][] rebuilt=ErasureCode.decode(group.code, data, parityIndexes, paritySymbols);
+			if(rebuilt==null)
+				return recovered;
+			for(int i=0, u=0;i<k;i++){
+				if(data[i]!=null)
+					continue;
+				cache.put(group.keys[i], rebuilt[u]);
+				awaited.remove(group.keys[i]);
+				recovered.add(rebuilt[u++]);
+			}
+			return recovered;
+		}
+	}
+}
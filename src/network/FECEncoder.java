@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import network.address.Endpoint;
+import network.assist.Serializer;
+import network.protocol.Message;
+
+/**
+ * Forward error correction of unreliable datagrams, sending parity datagrams over groups of them
+ * Each receiver and event has its own group, closed once full or when no datagram has joined it for a while
+ * Parity symbols are accumulated as datagrams join, so datagrams are not kept
+ * A parity datagram is a PARITY message whose payload holds the code, the group size, the parity count and index,
+ * the message id and fragment index of each datagram of the group, then the parity symbol
+ */
+class FECEncoder {
+	private final static int FLUSH_DELAY=40;		// max time in milliseconds between datagrams of a group
+	private final static int MESSAGE_HEADER_SIZE=40;	// room for the header of a parity message
+
+	private final TimingWheel timer;
+	private final Output output;
+	private volatile int[][] configs=new int[0][];	// code, group size and parity count of each event, null if not protected
+	private final Map<Endpoint,Group[]> groups=new ConcurrentHashMap<>();	// open group of each receiver, indexed by event
+
+	/**
+	 * Output of parity datagrams
+	 */
+	interface Output{
+		void send(int event, byte[] data, Endpoint receiver);
+	}
+
+	/**
+	 * Constructor
+	 * @param timer the timer closing idle groups
+	 * @param output who sends the parity datagrams
+	 */
+	FECEncoder(TimingWheel timer, Output output){
+		this.timer=timer;
+		this.output=output;
+	}
+
+	/**
+	 * Forget the open groups of a receiver, their parity is not sent
+	 * @param receiver the receiver endpoint
+	 */
+	void remove(Endpoint receiver){
+		groups.remove(receiver);
+	}
+
+	/**
+	 * Protect the datagrams of an event
+	 * @param event the event
+	 * @param code ErasureCode.XOR or ErasureCode.REED_SOLOMON, 0 not to protect
+	 * @param groupSize datagrams of a group
+	 * @param parityNum parity datagrams of a group, one with XOR
+	 */
+	synchronized void configure(int event, int code, int groupSize, int parityNum){
+		if(event<0)
+			return;
+		int[][] configs=Arrays.copyOf(this.configs, Math.max(this.configs.length, event+1));
+		if(code==ErasureCode.XOR)
+			parityNum=1;
+		groupSize=Math.max(1, Math.min(groupSize, ErasureCode.MAX_GROUP));
+		parityNum=Math.max(1, Math.min(parityNum, ErasureCode.MAX_GROUP));
+		configs[event]=code==ErasureCode.XOR || code==ErasureCode.REED_SOLOMON?new int[]{code,groupSize,parityNum}:null;
+		this.configs=configs;
+	}
+
+	/**
+	 * Check whether the datagrams of an event are protected
+	 * @param event the event
+	 * @return true if protected
+	 */
+	boolean isProtected(int event){
+		return getConfig(event)!=null;
+	}
+
+	/**
+	 * Get the bytes a parity datagram takes beyond the largest datagram of its group
+	 * @param event the event
+	 * @return the overhead, 0 if not protected
+	 */
+	int getOverhead(int event){
+		int[] config=getConfig(event);
+		return config!=null?MESSAGE_HEADER_SIZE+headerSize(config[1])+2:0;
+	}
+
+	/**
+	 * Add a sent datagram to the group of its receiver and event, sending the parity once the group is full
+	 * @param event the event
+	 * @param messageId the message id
+	 * @param fragmentIndex the fragment index, -1 if not a fragment
+	 * @param data the datagram
+	 * @param receiver the receiver endpoint
+	 */
+	void add(int event, int messageId, int fragmentIndex, byte[] data, Endpoint receiver){
+		int[] config=getConfig(event);
+		if(config==null)
+			return;
+		Group group=getGroup(receiver, event, config);
+		byte[][] parity=null;
+		synchronized(group){
+			if(group.add(messageId, fragmentIndex, data)){
+				parity=group.close();
+			}
+			else if(group.size==1){
+				int generation=group.generation;
+				timer.schedule(()->flush(group,generation), FLUSH_DELAY);
+			}
+		}
+		if(parity!=null)
+			send(event, parity, receiver);
+	}
+
+	private void flush(Group group, int generation){
+		byte[][] parity;
+		synchronized(group){
+			if(group.generation!=generation || group.size==0)
+				return;
+			parity=group.close();
+		}
+		send(group.event, parity, group.receiver);
+	}
+
+	private void send(int event, byte[][] parity, Endpoint receiver){
+		for(byte[] payload:parity){
+			Message message=Message.parity(event, payload);
+			message.setTimestamp();
+			output.send(event, Serializer.write(message), receiver);
+		}
+	}
+
+	private int[] getConfig(int event){
+		int[][] configs=this.configs;
+		return event>=0 && event<configs.length?configs[event]:null;
+	}
+
+	private Group getGroup(Endpoint receiver, int event, int[] config){
+		Group[] groups=this.groups.computeIfAbsent(receiver, key->new Group[0]);
+		if(event<groups.length && groups[event]!=null && groups[event].config==config)
+			return groups[event];
+		// created again once reconfigured
+		return this.groups.compute(receiver, (key,current)->{
+			Group[] updated=Arrays.copyOf(current, Math.max(current.length, event+1));
+			if(updated[event]==null || updated[event].config!=config)
+				updated[event]=new Group(receiver, event, config);
+			return updated;
+		})[event];
+	}
+
+	static int headerSize(int groupSize){
+		return 4+8*groupSize;
+	}
+
+	/**
+	 * Open group of datagrams to one receiver of one event
+	 */
+	private static class Group{
+		private final Endpoint receiver;
+		private final int event;
+		private final int[] config;
+		private final int[] messageIds;
+		private final int[] fragmentIndexes;
+		private final byte[][] parity;			// parity symbols accumulated so far
+		private int symbolSize=0;				// size of the largest symbol so far
+		private int size=0;						// datagrams in the group
+		private int generation=0;				// incremented once closed, so stale flushes are ignored
+
+		Group(Endpoint receiver, int event, int[] config){
+			this.receiver=receiver;
+			this.event=event;
+			this.config=config;
+			this.messageIds=new int[config[1]];
+			this.fragmentIndexes=new int[config[1]];
+			this.parity=new byte[config[2]][0];
+		}
+
+		/**
+		 * Add a datagram
+		 * @return true if the group is full
+		 */
+		boolean add(int messageId, int fragmentIndex, byte[] data){
+			int code=config[0];
+			symbolSize=Math.max(symbolSize, ErasureCode.symbolSize(data.length));
+			for(int j=0;j<parity.length;j++){
+				if(parity[j].length<symbolSize)
+					parity[j]=Arrays.copyOf(parity[j], Math.max(symbolSize, parity[j].length*2));
+				ErasureCode.accumulate(parity[j], ErasureCode.coefficient(code,j,size), data);
+			}
+			messageIds[size]=messageId;
+			fragmentIndexes[size]=fragmentIndex;
+			return ++size==config[1];
+		}
+
+		/**
+		 * Close the group, a partial one is coded as a group of its size
+		 * @return the payload of each parity datagram
+		 */
+		byte[][] close(){
+			int code=config[0];
+			byte[][] payloads=new byte[parity.length][];
+			for(int j=0;j<parity.length;j++){
+				ByteBuffer buffer=ByteBuffer.allocate(headerSize(size)+symbolSize);
+				buffer.put((byte)code).put((byte)size).put((byte)parity.length).put((byte)j);
+				for(int i=0;i<size;i++)
+					buffer.putInt(messageIds[i]).putInt(fragmentIndexes[i]);
+				buffer.put(parity[j], 0, symbolSize);
+				payloads[j]=buffer.array();
+				parity[j]=new byte[0];
+			}
+			symbolSize=0;
+			size=0;
+			generation++;
+			return payloads;
+		}
+	}
+}
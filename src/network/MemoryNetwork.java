@@ -0,0 +1,360 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.net.BindException;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import network.address.Endpoint;
+
+/**
+ * In-process network of memory transports, for testing and benchmarking without sockets
+ * Every datagram crosses a link of configurable loss, delay, jitter, reordering and bandwidth
+ * Random decisions come from a seeded generator, so sending the same datagrams in the same order
+ * loses and reorders the same ones in every run
+ * By default a delivery thread delivers datagrams in real time. In manual mode, time is virtual and only moves
+ * when the caller advances it, datagrams being delivered on the calling thread, so the arrival times and order
+ * depend only on the seed and the datagrams sent, not on the scheduling of threads
+ * Transports are addressed by port only, and each one sees the others at the loopback address
+ */
+public class MemoryNetwork implements Runnable {
+	private final static int FIRST_PORT=50000;			// first port given when binding any free port
+	
+	private final Map<Integer,MemoryTransport> transports=new ConcurrentHashMap<>();	// bound transports by port
+	private final PriorityQueue<Delivery> deliveries=new PriorityQueue<>();		// datagrams in flight by arrival time
+	private final Random random;
+	private final Thread worker;						// null in manual mode
+	private long clock=0;								// virtual time in nanoseconds, in manual mode
+	private int nextPort=FIRST_PORT;
+	private long nextSeq=0;								// tells datagrams arriving at the same time apart
+	private boolean isStopped=false;
+	
+	// link configuration
+	private double loss=0;								// fraction of datagrams lost
+	private int delay=0;								// one-way delay in milliseconds
+	private int jitter=0;								// max extra delay in milliseconds, uniformly distributed
+	private double reorderRate=0;						// fraction of datagrams held back behind the following ones
+	private int reorderDelay=0;							// extra delay of a held back datagram in milliseconds
+	private long bandwidth=0;							// bytes per second into each transport, 0 for unlimited
+	private int queueSize=256*1024;						// bytes waiting for the bandwidth, datagrams beyond are dropped
+	
+	// counters
+	private long sentNum=0;
+	private long lostNum=0;
+	private long droppedNum=0;
+	private long deliveredNum=0;
+	
+	/**
+	 * Constructor, starting the delivery thread
+	 * @param seed the seed of loss, jitter and reordering decisions
+	 */
+	public MemoryNetwork(long seed){
+		this(seed,false);
+	}
+	
+	/**
+	 * Constructor
+	 * @param seed the seed of loss, jitter and reordering decisions
+	 * @param isManual true to deliver datagrams only through "advance" and "step", in virtual time
+	 */
+	public MemoryNetwork(long seed, boolean isManual){
+		this.random=new Random(seed);
+		if(isManual){
+			this.worker=null;
+			return;
+		}
+		this.worker=new Thread(this,"Memory network");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+	
+	private long now(){
+		return worker==null?clock:System.nanoTime();
+	}
+	
+	/**
+	 * Move the virtual time forward, delivering the datagrams arriving meanwhile in order of arrival
+	 * Datagrams sent while delivering are delivered too if they arrive in time
+	 * @param time the time in milliseconds
+	 * @return the number of datagrams delivered
+	 * @throws IllegalStateException if not in manual mode
+	 */
+	public int advance(long time){
+		long end;
+		synchronized(this){
+			checkManual();
+			end=clock+time*1000000L;
+		}
+		int num=0;
+		while(deliverNext(end))
+			num++;
+		synchronized(this){
+			clock=Math.max(clock, end);
+		}
+		return num;
+	}
+	
+	/**
+	 * Move the virtual time to the arrival of the next datagram, and deliver it
+	 * @return false if no datagram is in flight
+	 * @throws IllegalStateException if not in manual mode
+	 */
+	public boolean step(){
+		synchronized(this){
+			checkManual();
+		}
+		return deliverNext(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Get the virtual time
+	 * @return the time in milliseconds since the network was created, in manual mode
+	 */
+	public synchronized long getTime(){
+		return clock/1000000L;
+	}
+	
+	private void checkManual(){
+		if(worker!=null)
+			throw new IllegalStateException("Not in manual mode");
+	}
+	
+	/**
+	 * Deliver the next datagram on the calling thread, if it arrives by the time
+	 * @param end the latest arrival time in nanoseconds
+	 * @return true if delivered
+	 */
+	private boolean deliverNext(long end){
+		Delivery delivery;
+		synchronized(this){
+			delivery=deliveries.peek();
+			if(isStopped || delivery==null || delivery.time>end)
+				return false;
+			deliveries.poll();
+			deliveredNum++;
+			clock=Math.max(clock, delivery.time);
+		}
+		MemoryTransport destination=transports.get(delivery.port);
+		if(destination!=null)
+			destination.deliver(delivery.data, delivery.sender);
+		return true;
+	}
+	
+	/**
+	 * Bind a transport to a port
+	 * @param port the port, 0 for any free port
+	 * @return the transport
+	 * @throws BindException if the port is already bound
+	 */
+	public synchronized MemoryTransport bind(int port) throws BindException{
+		if(port==0){
+			while(transports.containsKey(nextPort))
+				nextPort++;
+			port=nextPort++;
+		}
+		MemoryTransport transport=new MemoryTransport(this,port);
+		if(transports.putIfAbsent(port, transport)!=null)
+			throw new BindException("Port "+port+" already bound");
+		return transport;
+	}
+	
+	/**
+	 * Release the port of a closed transport
+	 * @param transport the transport
+	 */
+	void unbind(MemoryTransport transport){
+		transports.remove(transport.getLocalPort(), transport);
+	}
+	
+	/**
+	 * Set the loss
+	 * @param loss fraction of datagrams lost, between 0 and 1
+	 */
+	public synchronized void setLoss(double loss){
+		this.loss=loss;
+	}
+	
+	/**
+	 * Set the delay
+	 * @param delay one-way delay in milliseconds
+	 * @param jitter max extra delay in milliseconds, which also reorders datagrams closer than it
+	 */
+	public synchronized void setDelay(int delay, int jitter){
+		this.delay=delay;
+		this.jitter=jitter;
+	}
+	
+	/**
+	 * Set the reordering
+	 * @param reorderRate fraction of datagrams held back behind the following ones
+	 * @param reorderDelay extra delay of a held back datagram in milliseconds
+	 */
+	public synchronized void setReorder(double reorderRate, int reorderDelay){
+		this.reorderRate=reorderRate;
+		this.reorderDelay=reorderDelay;
+	}
+	
+	/**
+	 * Set the bandwidth into each transport, datagrams wait in a queue in front of the receiver
+	 * @param bandwidth bytes per second, 0 for unlimited
+	 * @param queueSize bytes waiting in the queue, datagrams beyond are dropped
+	 */
+	public synchronized void setBandwidth(long bandwidth, int queueSize){
+		this.bandwidth=bandwidth;
+		this.queueSize=queueSize;
+	}
+	
+	/**
+	 * Get the number of datagrams sent
+	 * @return the count
+	 */
+	public synchronized long getSentNum(){
+		return sentNum;
+	}
+	
+	/**
+	 * Get the number of datagrams lost at random
+	 * @return the count
+	 */
+	public synchronized long getLostNum(){
+		return lostNum;
+	}
+	
+	/**
+	 * Get the number of datagrams dropped by a full queue, or sent to an unbound port
+	 * @return the count
+	 */
+	public synchronized long getDroppedNum(){
+		return droppedNum;
+	}
+	
+	/**
+	 * Get the number of datagrams delivered
+	 * @return the count
+	 */
+	public synchronized long getDeliveredNum(){
+		return deliveredNum;
+	}
+	
+	/**
+	 * Put a datagram on the link to the receiver
+	 * @param sender the sending transport
+	 * @param data the datagram
+	 * @param receiver the receiver endpoint
+	 */
+	synchronized void send(MemoryTransport sender, byte[] data, Endpoint receiver){
+		sentNum++;
+		MemoryTransport destination=transports.get(receiver.getPort());
+		if(destination==null){
+			droppedNum++;
+			return;
+		}
+		if(loss>0 && random.nextDouble()<loss){
+			lostNum++;
+			return;
+		}
+		
+		// wait for the bandwidth behind the datagrams already queued for the receiver
+		long now=now();
+		long time=now;
+		if(bandwidth>0){
+			long start=Math.max(now, destination.nextFree);
+			if((start-now)*bandwidth/1000000000L+data.length>queueSize){
+				droppedNum++;
+				return;
+			}
+			destination.nextFree=start+data.length*1000000000L/bandwidth;
+			time=destination.nextFree;
+		}
+		
+		long extraDelay=delay;
+		if(jitter>0)
+			extraDelay+=random.nextInt(jitter+1);
+		if(reorderRate>0 && random.nextDouble()<reorderRate)
+			extraDelay+=reorderDelay;
+		time+=extraDelay*1000000L;
+		
+		deliveries.add(new Delivery(time, nextSeq++, data,
+				new Endpoint(InetAddress.getLoopbackAddress(), sender.getLocalPort()), receiver.getPort()));
+		notifyAll();
+	}
+	
+	/**
+	 * Stop delivering, datagrams in flight are discarded
+	 */
+	public synchronized void stop(){
+		isStopped=true;
+		deliveries.clear();
+		notifyAll();
+	}
+	
+	@Override
+	public void run(){
+		while(true){
+			Delivery delivery;
+			synchronized(this){
+				while(true){
+					if(isStopped)
+						return;
+					delivery=deliveries.peek();
+					long wait=delivery==null?0:delivery.time-System.nanoTime();
+					if(delivery!=null && wait<=0)
+						break;
+					try {
+						wait(delivery==null?0:wait/1000000, delivery==null?0:(int)(wait%1000000));
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				deliveries.poll();
+				deliveredNum++;
+			}
+			MemoryTransport destination=transports.get(delivery.port);
+			if(destination!=null)
+				destination.deliver(delivery.data, delivery.sender);
+		}
+	}
+	
+	/**
+	 * Datagram in flight
+	 */
+	private static class Delivery implements Comparable<Delivery>{
+		final long time;				// arrival time in nanoseconds
+		final long seq;
+		final byte[] data;
+		final Endpoint sender;
+		final int port;					// port of the receiver
+		
+		Delivery(long time, long seq, byte[] data, Endpoint sender, int port){
+			this.time=time;
+			this.seq=seq;
+			this.data=data;
+			this.sender=sender;
+			this.port=port;
+		}
+		
+		@Override
+		public int compareTo(Delivery other){
+			if(time!=other.time)
+				return time-other.time<0?-1:1;
+			return Long.compare(seq, other.seq);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import network.address.Endpoint;
+
+/**
+ * Transport bound to a port of a memory network, received on the delivery thread of the network
+ */
+public class MemoryTransport implements Transport {
+	private final static int MAX_PENDING=1024;		// datagrams kept until listening starts
+	
+	private final MemoryNetwork network;
+	private final int port;
+	private volatile Receiver receiver;				// set once listening
+	private Queue<Object[]> pending=new ArrayDeque<>();	// datagrams and their senders arrived before listening
+	private volatile boolean isClosed=false;
+	long nextFree=0;								// when the link into the transport is free, guarded by the network
+	
+	/**
+	 * Constructor
+	 * @param network the network
+	 * @param port the bound port
+	 */
+	MemoryTransport(MemoryNetwork network, int port){
+		this.network=network;
+		this.port=port;
+	}
+	
+	/**
+	 * Take a datagram delivered by the network
+	 * @param data the datagram
+	 * @param sender the sender endpoint
+	 */
+	void deliver(byte[] data, Endpoint sender){
+		Receiver receiver=this.receiver;
+		if(receiver==null){
+			synchronized(this){
+				receiver=this.receiver;
+				if(receiver==null){
+					if(!isClosed && pending.size()<MAX_PENDING)
+						pending.add(new Object[]{data,sender});
+					return;
+				}
+			}
+		}
+		try{
+			receiver.receive(ByteBuffer.wrap(data), sender);
+		}
+		catch(Exception e){
+			//e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public void listen(Receiver receiver) throws IOException{
+		synchronized(this){
+			Object[] datagram;
+			while((datagram=pending.poll())!=null){
+				try{
+					receiver.receive(ByteBuffer.wrap((byte[])datagram[0]), (Endpoint)datagram[1]);
+				}
+				catch(Exception e){
+					//e.printStackTrace();
+				}
+			}
+			this.receiver=receiver;
+			while(!isClosed){
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void send(ByteBuffer data, Endpoint receiver) throws IOException{
+		if(isClosed)
+			throw new IOException("Transport closed");
+		byte[] datagram=new byte[data.remaining()];
+		data.get(datagram);
+		network.send(this, datagram, receiver);
+	}
+	
+	@Override
+	public boolean isDirect(){
+		return false;
+	}
+	
+	@Override
+	public Transport bind(int port) throws IOException{
+		return network.bind(port);
+	}
+	
+	@Override
+	public int getLocalPort(){
+		return port;
+	}
+	
+	@Override
+	public void setBufferSize(int bufferSize){
+		// the network models the queues
+	}
+	
+	@Override
+	public synchronized void close(){
+		isClosed=true;
+		pending.clear();
+		network.unbind(this);
+		notifyAll();
+	}
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+/**
+ * Keep-alive state of the path to one endpoint, learning how long the NAT bindings on it survive idle
+ * Any outbound datagram refreshes the binding, so the endpoint is only pinged after an idle interval
+ * The interval starts long; a ping left unanswered means the binding was lost, and the interval is halved
+ * Answered pings let it grow back slowly, staying below the shortest interval seen failing
+ */
+class NATBinding {
+	private final static int INITIAL_INTERVAL=30000;		// first guess in milliseconds, above the shortest common NAT timeouts
+	private final static int MAX_INTERVAL=120000;	// the longest binding required for UDP by RFC 4787
+	private final static int GROW_AFTER=4;			// answered pings before trying a longer interval
+
+	private final int minInterval;					// shortest interval, however often pings are lost
+	private volatile long lastSent;					// when a datagram was last sent, in nanoseconds
+	private int interval;							// current idle time before a ping, in milliseconds
+	private int failedInterval=Integer.MAX_VALUE;	// shortest interval after which a ping was lost
+	private int answeredNum=0;						// answered pings since the interval last changed
+	private boolean isPinging=false;				// a ping is waiting for its answer
+
+	/**
+	 * Constructor
+	 * @param minInterval the shortest interval between pings, in milliseconds
+	 */
+	NATBinding(int minInterval){
+		this.minInterval=minInterval;
+		this.interval=Math.max(minInterval, INITIAL_INTERVAL);
+		this.lastSent=System.nanoTime()-interval*1000000L;	// a new endpoint is pinged at once
+	}
+
+	/**
+	 * Record a datagram sent to the endpoint, refreshing the binding
+	 */
+	void sent(){
+		lastSent=System.nanoTime();
+	}
+
+	/**
+	 * Check whether the endpoint has been idle for the interval, and mark a ping sent if so
+	 * @return true if the endpoint should be pinged now
+	 */
+	synchronized boolean shouldPing(){
+		if(isPinging || (System.nanoTime()-lastSent)/1000000<interval)
+			return false;
+		isPinging=true;
+		return true;
+	}
+
+	/**
+	 * Learn from the outcome of a ping
+	 * @param isAnswered true if the ping has been acknowledged
+	 */
+	synchronized void pinged(boolean isAnswered){
+		isPinging=false;
+		if(!isAnswered){
+			// the binding expired during the idle interval, unless the endpoint is just gone
+			if(interval>minInterval)
+				failedInterval=Math.min(failedInterval, interval);
+			interval=Math.max(minInterval, interval/2);
+			answeredNum=0;
+		}
+		else if(++answeredNum>=GROW_AFTER){
+			long longer=Math.min(MAX_INTERVAL, Math.min((long)interval+interval/4, (long)failedInterval*3/4));
+			interval=Math.max(interval, (int)longer);
+			answeredNum=0;
+		}
+	}
+
+	/**
+	 * Get the current interval
+	 * @return the idle time before a ping, in milliseconds
+	 */
+	synchronized int getInterval(){
+		return interval;
+	}
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+/**
+ * Smoothed round trip time and its variance of one endpoint, fed by ACK timing
+ * The retransmission timeout is computed as in RFC 6298
+ */
+public class RTTEstimator {
+	// timeout bounds in milliseconds
+	public final static int INITIAL_RTO=1000;		// before the first sample
+	public final static int MIN_RTO=30;
+	public final static int MAX_RTO=5000;
+
+	private final static long GRANULARITY=10000;	// timer tick in microseconds
+
+	private long smoothedRTT=-1;					// in microseconds, -1 before the first sample
+	private long RTTVariance;						// in microseconds
+	private int RTO=INITIAL_RTO;					// in milliseconds
+	private long sampleNum=0;
+
+	/**
+	 * Add a round trip time sample, only from messages that were not resent (Karn's algorithm)
+	 * @param RTT the round trip time in nanoseconds
+	 */
+	synchronized void update(long RTT){
+		long sample=Math.max(1, RTT/1000);
+		if(smoothedRTT<0){
+			smoothedRTT=sample;
+			RTTVariance=sample/2;
+		}
+		else{
+			RTTVariance=(3*RTTVariance+Math.abs(smoothedRTT-sample))/4;
+			smoothedRTT=(7*smoothedRTT+sample)/8;
+		}
+		long timeout=(smoothedRTT+Math.max(GRANULARITY, 4*RTTVariance))/1000;
+		RTO=(int)Math.min(MAX_RTO, Math.max(MIN_RTO, timeout));
+		sampleNum++;
+	}
+
+	/**
+	 * Get the retransmission timeout
+	 * @return the timeout in milliseconds
+	 */
+	public synchronized int getRTO(){
+		return RTO;
+	}
+
+	/**
+	 * Get the smoothed round trip time
+	 * @return the smoothed round trip time in microseconds, -1 if not measured yet
+	 */
+	public synchronized long getSmoothedRTT(){
+		return smoothedRTT;
+	}
+
+	/**
+	 * Get the round trip time variance
+	 * @return the variance in microseconds
+	 */
+	public synchronized long getRTTVariance(){
+		return RTTVariance;
+	}
+
+	/**
+	 * Check whether any sample has been taken
+	 * @return true if measured
+	 */
+	public synchronized boolean hasSample(){
+		return sampleNum>0;
+	}
+
+	/**
+	 * Get the number of samples
+	 * @return the sample number
+	 */
+	public synchronized long getSampleNum(){
+		return sampleNum;
+	}
+
+	/**
+	 * Exponential backoff of a retransmission timeout
+	 * @param timeout the current timeout in milliseconds
+	 * @return the doubled timeout, bounded by the max timeout
+	 */
+	static int backoff(int timeout){
+		return Math.min(MAX_RTO, timeout*2);
+	}
+}
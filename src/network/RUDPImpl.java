@@ -1,355 +1,1023 @@
-/*******************************************************************************
- * Copyright Yifan Ruan
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- *******************************************************************************/
-package network;
-
-import java.io.EOFException;
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-
-import log.MessageLog;
-import network.address.Endpoint;
-import network.assist.Serializer;
-import network.protocol.Message;
-
-/**
- * Reliable UDP implementation
- * @author Yifan Ruan (ry222ad@student.lnu.se)
- */
-public class RUDPImpl implements Runnable{
-
-	private String userId;						// specific identifier
-	
-	private Reactor reactor;					// who dispatches incoming messages
-	
-    private ExecutorService executorService;   // the thread pool of managing running threads
-
-	
-	private int port;						   // UDP port		
-	private DatagramSocket socket;  		   // UDP socket
-	private final int MAX_PACKET_SIZE=32000;   // max packet size
-	private boolean isStopped=false;           // identifier of stopping
-    
-    private Set<Integer> ACKSet = Collections.synchronizedSet(new HashSet<>());  // ACK message record
-    private Map<Integer,Message> replys=new ConcurrentHashMap<>();           	 // reply message record
-    
-    private Set<Endpoint> keepAliveEndpoints = Collections.synchronizedSet(new HashSet<>()); // record of endpoints for keeping alive
-    
-    // default reliable configuration
-    private final static int ACK_TIMEOUT=5000;
-    private final static int REPLY_TIMEOUT=45000;
-    private final static int RESEND_NUM=2;
-    private ReliableConfiguration defaultConfig=new ReliableConfiguration(ACK_TIMEOUT,REPLY_TIMEOUT,RESEND_NUM);
-
-    /**
-     * Constructor
-     * @param userId the user id
-     * @param port the host port
-     */
-	public RUDPImpl(String userId,int port){
-		this.userId=userId;
-		this.port=port;
-		this.reactor=new Reactor();
-        try {
-			this.socket = new DatagramSocket(this.port);
-			this.executorService = Executors.newFixedThreadPool(10);
-			 //this.executorService = Executors.newCachedThreadPool();
-		} catch (SocketException e) {
-			e.printStackTrace();
-		}
-        
-        // start log
-        MessageLog.start();
-	}
-	
-	/**
-	 * Get the reactor
-	 * @return reactor to dispatch message
-	 */
-	public Reactor getReactor(){
-		return this.reactor;
-	}
-	
-	/**
-	 * Add a endpoint to be kept alive
-	 * @param endpoint which to be kept alive
-	 */
-	public void addKeepAliveEndpoint(Endpoint endpoint){
-		this.keepAliveEndpoints.add(endpoint);
-		synchronized(keepAliveEndpoints){
-			keepAliveEndpoints.notifyAll();
-		}
-	}
-	
-	/**
-	 * Remove the endpoint to be kept alive
-	 * @param endpoint which not to be kept alive
-	 */
-	public void removeKeepAliveEndpoint(Endpoint endpoint){
-		this.keepAliveEndpoints.remove(endpoint);
-	}
-		
-	/**
-	 * Listen for incoming messages
-	 */
-	@Override
-	public void run() {	
-		byte[] receivedData = new byte[MAX_PACKET_SIZE];
-		int length=receivedData.length;
-		
-		while (!isStopped()) {
-		    DatagramPacket receivedPacket = new DatagramPacket(receivedData, length);
-        	try {
-				socket.receive(receivedPacket);
-	        	//System.out.println("Message received");
-            	Message message=(Message) Serializer.read(receivedPacket.getData(),Message.class);
-            	
-       		 	// log received messages
-       		 	MessageLog.info(MessageLog.RECEIVED, message);
-            	
-        		// response ACK message
-        		if(message.isReliable()){
-        			Message ACKMessgae=new Message(userId,Message.ACK,message.getId(),null);
-        			this.sendMessage(ACKMessgae,new Endpoint(receivedPacket.getAddress(),receivedPacket.getPort()));
-        		}
-        		
-            	if(message.getCode()==Message.ACK){
-            		// add ACK message to ASCKSet and notify related thread
-            		int repliedMessageId= message.getRepliedMessageId();
-            		synchronized(ACKSet){
-                		ACKSet.add(repliedMessageId);
-            			ACKSet.notifyAll();
-            		}
-            	}
-            	else if(message.getCode()==Message.REPLY){
-                		// add reply message to replys and notify related thread
-                		int repliedMessageId=message.getRepliedMessageId();
-            			synchronized(replys){
-                    		replys.put(repliedMessageId, message);
-            				replys.notifyAll();
-            			}
-                }
-                else
-                	reactor.dispatch(message);
-			}
-        	catch(EOFException e){
-        	}
-        	catch (IOException e) {
-	            if(isStopped()) {
-	                return;
-	            }
-			}
-		}
-	}
-		
-    private synchronized boolean isStopped() {
-        return this.isStopped;
-    }
-
-    /**
-     * Stop all including UDP socket
-     */
-    public synchronized void stop(){
-        this.isStopped = true;	        
-        socket.close();
-		executorService.shutdown();
-		reactor.shutdown();
-		
-        // stop log
-        MessageLog.stop();
-    }
- 
-    /**
-     * Send reliable message to remote side
-     * @param message       message to be sent
-     * @param receiver      receiver endpoint
-     * @param config        reliable configuration
-     * @param replyHandler  object to handle reply 
-     * @return              result after sending the message
-     */
-    public Result sendReliableMessage(Message message, Endpoint receiver, ReliableConfiguration config, Handler replyHandler){
-		Future<Result> future =executorService.submit(new Callable<Result>(){
-			public Result call() throws Exception{
-				try{
-					// set the message reliable
-					message.setReliable();
-					
-					int messageId=message.getId();
-					
-					byte tempBuffer[]=Serializer.write(message);					
-					
-					// send the message
-					DatagramPacket sendPacket = new DatagramPacket(tempBuffer, tempBuffer.length, receiver.getAddress(), receiver.getPort());		    				    		
-					
-           		 	// log sent messages
-           		 	MessageLog.info(MessageLog.SENT, message);
-           		 	
-					socket.send(sendPacket);	
-										
-					// wait for ACK message
-					synchronized(ACKSet){					
-					    int resendNum=config!=null?config.resendNum:defaultConfig.resendNum;
-					    int ACKTimeout=config!=null?config.ACKTimeout:defaultConfig.ACKTimeout;
-					    int replayTimeout=config!=null?config.replyTimeout:defaultConfig.replyTimeout;
-					    
-					    long startTime = System.currentTimeMillis();
-					    long endTime;
-
-					    while(!ACKSet.contains(messageId)){
-					    	ACKSet.wait(ACKTimeout);			    	
-							endTime = System.currentTimeMillis();
-							if((endTime-startTime)>ACKTimeout){					
-								if(resendNum>0){
-									socket.send(sendPacket);
-									resendNum--;
-									startTime = System.currentTimeMillis();
-								}
-								else{
-									return new Result(Result.TIMEOUT);
-								}
-							}
-					    }	
-					    
-					    if(replyHandler!=null){					    
-					    	// wait for reply
-					    	synchronized(replys){
-							    startTime = System.currentTimeMillis();
-					    		while(!replys.containsKey(messageId)){			    			
-					    			replys.wait(replayTimeout);				
-					    			endTime = System.currentTimeMillis();
-									if((endTime-startTime)>replayTimeout){
-										return new Result(Result.TIMEOUT);
-									}
-					    		}
-								return new Result(Result.REPLIED,replyHandler.handle(replys.get(messageId)));
-					    	}
-					    }
-					    else
-							return new Result(Result.RECEIVED);
-					}			
-				}
-				catch(Exception e){
-					return new Result(Result.EXTRA_ERROR);
-				}
-			}
-		});
-		try {
-			return future.get();	// return result
-		} catch (Exception e) {
-			return new Result(Result.EXTRA_ERROR);
-		}
-	}
-    
-    /**
-     * Send unreliable message to remote side
-     * @param message       message to be sent
-     * @param receiver      receiver endpoint
-     */
-    public void sendMessage(Message message,Endpoint receiver){
-    	executorService.execute(new Runnable(){
-    	    public void run() {
-              	 try{	    				    		
-            		 //byte tempBuffer[]=Serialization.serialize(message);
-            		 byte tempBuffer[]=Serializer.write(message);
- 					 
-            		 DatagramPacket sendPacket = new DatagramPacket(tempBuffer, tempBuffer.length, receiver.getAddress(), receiver.getPort());		    				    		
-            		 
-            		 // log sent messages
-            		 MessageLog.info(MessageLog.SENT, message);
-            		 
-            		 socket.send(sendPacket);	 
-            		             		 
-              	 }
-               	 catch(Exception e){
-               		 //e.printStackTrace();
-               		 return;
-               	 }    	    
-           }
-    	});	
-	}
-    
-    /**
-     * Send PING message to endpoints to keep alive
-     * @param timeout frequency to send message
-     */
-    public void keepAlive(int timeout){
-    	Message message=new Message(userId,Message.PING,-1,null);
-    	executorService.execute(new Runnable(){
-    	    public void run() {
-              	 try{	    				    		
-              		 //byte tempBuffer[]=Serialization.serialize(message);
-            		 byte tempBuffer[]=Serializer.write(message);
-              		 while(!isStopped()){
-              			 synchronized(keepAliveEndpoints){
-              				 keepAliveEndpoints.forEach(endpoint->{
-              					 try {
-              						 DatagramPacket sendPacket = new DatagramPacket(tempBuffer, tempBuffer.length, endpoint.getAddress(), endpoint.getPort());
-              						 socket.send(sendPacket);
-              						 } catch (Exception e) {
-    									//e.printStackTrace();
-    								}
-       	 						});
-              				 keepAliveEndpoints.wait(timeout);
-       	 					}
-       	 				}
-              	 }
-               	 catch(Exception e){
-               		 //e.printStackTrace();
-               		 return;
-               	 }    	    
-           }
-    	});	
-    }
-    
-    /**
-     * Test endpoint connected or not
-     * @param remoter  remote user endpoint to be tested 
-     * @return true if connected else false
-     */
-    public boolean testConnect(Endpoint remoter){
-    	Message message=new Message(userId,Message.PING,-1,null);
-    	ReliableConfiguration config=new ReliableConfiguration(100,0,2);
-    	Result state=sendReliableMessage(message,remoter,config,null);
-    	return state.getFlag()==Result.RECEIVED;
-    }
-    
-    /**
-     * Reliable configuration
-     * @author Yifan Ruan (ry222ad@student.lnu.se)
-     */
-    class ReliableConfiguration{
-    	int ACKTimeout;
-    	int replyTimeout;
-    	int resendNum;
-    	
-    	public ReliableConfiguration(int ACKTimeout, int replyTimeout,int resendNum){
-    		this.ACKTimeout=ACKTimeout;
-    		this.replyTimeout=replyTimeout;
-    		this.resendNum=resendNum;
-    	}
-    }
-    	
-}
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import javax.management.ObjectName;
+
+import log.MessageLog;
+import network.SendWindow.Segment;
+import network.TimingWheel.Timeout;
+import network.address.Endpoint;
+import network.assist.ByteBufferPool;
+import network.assist.Serializer;
+import network.assist.Threads;
+import network.metrics.Metrics;
+import network.protocol.Message;
+
+/**
+ * Reliable UDP implementation
+ * @author Yifan Ruan (ry222ad@student.lnu.se)
+ */
+public class RUDPImpl implements Runnable{
+	// forward error correction codes
+	public final static int XOR=ErasureCode.XOR;						// one parity datagram per group
+	public final static int REED_SOLOMON=ErasureCode.REED_SOLOMON;	// any number of parity datagrams per group
+
+	private String userId;						// specific identifier
+	
+	private Reactor reactor;					// who dispatches incoming messages
+	
+	private Metrics metrics=new Metrics();		// traffic, timing and dispatch metrics, published in JMX
+	private TransportMetrics transportMetrics=new TransportMetrics(metrics);
+	
+    private ExecutorService executorService;   // the thread pool of managing running threads
+    
+    // timer shared by all instances, expiring ACK and reply timeouts and keep-alive ticks
+    private final static TimingWheel timer=new TimingWheel(10,512,"RUDP timer");
+
+	
+	private Transport transport;               // sends and receives the datagrams
+	private int maxDatagramSize=1280;          // larger messages are sent in fragments, fitting in the path MTU
+	private boolean isStopped=false;           // identifier of stopping
+    
+    // direct buffers shared by all instances using channels
+    private final static ByteBufferPool bufferPool=new ByteBufferPool(Transport.MAX_PACKET_SIZE,64);
+    
+    private Map<Endpoint,SendWindow> sendWindows=new ConcurrentHashMap<>();   // sliding window of each receiver
+    private Map<Source,ReceiveWindow> receiveWindows=new ConcurrentHashMap<>();    // received reliable messages of each sender
+    private ExpiringIntMap<Segment> segments=new ExpiringIntMap<>(MAX_PENDING,segment->{    // reliable messages waiting for ACK
+    	segment.cancelTimer();
+    	segment.abandon();
+    });
+    private ExpiringIntMap<CompletableFuture<Message>> replys=new ExpiringIntMap<>(MAX_PENDING,reply->reply.complete(null));  // completion of each awaited reply
+    private Map<Endpoint,ArrivalMonitor> arrivalMonitors=new ConcurrentHashMap<>();    // arrivals from each sender, reported back
+    private Map<Endpoint,BandwidthEstimator> bandwidthEstimators=new ConcurrentHashMap<>();  // available bandwidth to each receiver
+    private Reassembler reassembler;                                           // messages received in fragments
+    private Batcher batcher;                                                   // small messages sent in one datagram
+    private TransmitScheduler scheduler;                                       // order of unreliable messages by event
+    private FECEncoder fecEncoder;                                             // parity of unreliable messages sent
+    private FECDecoder fecDecoder;                                             // unreliable messages rebuilt from parity
+    private int windowSize=32;                                                 // max reliable messages in flight per receiver
+    private SessionTable sessionTable=new SessionTable();                      // session ids standing for sender ids
+    
+    private Map<Endpoint,NATBinding> keepAliveEndpoints=new ConcurrentHashMap<>();  // record of endpoints for keeping alive
+    private int keepAliveInterval=0;                                               // shortest interval between pings, set once keeping alive
+    
+    // default reliable configuration
+    private final static int ACK_TIMEOUT=5000;
+    private final static int REPLY_TIMEOUT=45000;
+    private final static int RESEND_NUM=2;
+    private final static int PROBE_TIMEOUT=100;
+    private final static int KEEP_ALIVE_TICK=1000;   // idle endpoints are looked for this often
+    
+    // ACK coalescing
+    private final static int ACK_DELAY=10;        // max delay of an ACK, unless piggybacked earlier
+    private final static int ACK_EVERY=8;         // ACK at once after this many messages
+    
+    private final static int FRAGMENT_HEADER_SIZE=40;   // room for the header of a fragment
+    private final static int REASSEMBLY_TIMEOUT=2000;   // time to wait for missing fragments
+    private final static int REPORT_INTERVAL=100;       // arrivals are reported to each sender this often
+    
+    // pending message tables, bounded and swept in case a completion never comes
+    private final static int MAX_PENDING=65536;         // max messages waiting for ACK, and for reply
+    private final static int EXPIRY_INTERVAL=1000;      // expired messages are given up this often
+    private final static long IDLE_TIMEOUT=300000;      // endpoints not kept alive are forgotten once idle this long, in milliseconds
+    private ReliableConfiguration defaultConfig=new ReliableConfiguration(ACK_TIMEOUT,REPLY_TIMEOUT,RESEND_NUM);
+
+    /**
+     * Constructor
+     * @param userId the user id
+     * @param port the host port
+     */
+	public RUDPImpl(String userId,int port){
+		this(userId,port,false);
+	}
+	
+    /**
+     * Constructor
+     * @param userId the user id
+     * @param port the host port
+     * @param useChannel true to use a non-blocking channel served by a shared selector thread, instead of a socket
+     */
+	public RUDPImpl(String userId,int port,boolean useChannel){
+		this(userId,openTransport(port,useChannel));
+	}
+	
+    /**
+     * Constructor
+     * @param userId the user id
+     * @param transport the transport of datagrams, such as a UDP socket or a memory network
+     */
+	public RUDPImpl(String userId,Transport transport){
+		this.userId=userId;
+		this.transport=transport;
+		this.reactor=new Reactor(metrics);
+		this.reassembler=new Reassembler(timer,REASSEMBLY_TIMEOUT,(sender,message)->{
+			if(!sessionTable.resolve(message,sender))
+				return;
+			MessageLog.info(MessageLog.RECEIVED, message);
+			dispatch(message);
+		});
+		this.batcher=new Batcher(this::write,maxDatagramSize);
+		this.scheduler=new TransmitScheduler(batcher::send,"RUDP sender",metrics);
+		this.fecEncoder=new FECEncoder(timer,scheduler::submit);
+		this.fecDecoder=new FECDecoder((sender,data)->{
+			transportMetrics.path(sender).recovered();
+			receive((Message)Serializer.read(data,0,data.length,Message.class),sender,0);
+		});
+		this.executorService = Threads.newPool(10,"RUDP reply");
+        
+        // start log
+        MessageLog.start();
+        
+        if(transport!=null)
+        	metrics.register("MCTF:type=RUDP,user="+ObjectName.quote(String.valueOf(userId))+",port="+transport.getLocalPort());
+        
+        // report arrivals for the bandwidth estimation of the senders
+    	timer.schedule(new Runnable(){
+    		public void run() {
+    			if(isStopped())
+    				return;
+    			arrivalMonitors.forEach((sender,monitor)->{
+    				byte[] report=monitor.report();
+    				if(report!=null)
+    					sendReport(sender,report);
+    			});
+    			timer.schedule(this, REPORT_INTERVAL);
+    		}
+    	}, REPORT_INTERVAL);
+    	
+    	// give up messages outliving any timeout, and forget idle endpoints
+    	timer.schedule(new Runnable(){
+    		public void run() {
+    			if(isStopped())
+    				return;
+    			segments.expire();
+    			replys.expire();
+    			for(Endpoint endpoint:transportMetrics.idle(IDLE_TIMEOUT*1000000)){
+    				if(!keepAliveEndpoints.containsKey(endpoint))
+    					evict(endpoint);
+    			}
+    			timer.schedule(this, EXPIRY_INTERVAL);
+    		}
+    	}, EXPIRY_INTERVAL);
+	}
+	
+	/**
+	 * Open the UDP transport
+	 * @param port the host port
+	 * @param useChannel true for a non-blocking channel, instead of a socket
+	 * @return the transport, null if the port cannot be bound
+	 */
+	private static Transport openTransport(int port, boolean useChannel){
+		try {
+			if(useChannel)
+				return new ChannelTransport(port,bufferPool);
+			return new UDPTransport(port);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Get the transport
+	 * @return the transport of datagrams
+	 */
+	public Transport getTransport(){
+		return this.transport;
+	}
+	
+	/**
+	 * Get the reactor
+	 * @return reactor to dispatch message
+	 */
+	public Reactor getReactor(){
+		return this.reactor;
+	}
+	
+	/**
+	 * Get the metrics registry, also published in the platform MBean server as "MCTF:type=RUDP,user=ID,port=PORT"
+	 * @return the registry, whose snapshot reads every metric
+	 */
+	public Metrics getMetrics(){
+		return this.metrics;
+	}
+	
+	/**
+	 * Get the local port, useful when bound to any free port
+	 * @return the port
+	 */
+	public int getLocalPort(){
+		return transport.getLocalPort();
+	}
+	
+	/**
+	 * Set the size of the transport receive and send buffers
+	 * @param bufferSize the buffer size in bytes
+	 */
+	public void setBufferSize(int bufferSize){
+		transport.setBufferSize(bufferSize);
+	}
+	
+	/**
+	 * Set the number of reliable messages that can be in flight to one receiver
+	 * @param windowSize the window size, 1 means stop-and-wait
+	 */
+	public void setWindowSize(int windowSize){
+		this.windowSize=Math.max(1, windowSize);
+		sendWindows.values().forEach(window->window.setSize(this.windowSize));
+	}
+	
+	/**
+	 * Set the max datagram size, larger messages are sent in fragments
+	 * @param maxDatagramSize the max datagram size in bytes
+	 */
+	public void setMaxDatagramSize(int maxDatagramSize){
+		this.maxDatagramSize=Math.max(FRAGMENT_HEADER_SIZE+1, Math.min(Transport.MAX_PACKET_SIZE, maxDatagramSize));
+		batcher.setMaxSize(this.maxDatagramSize);
+	}
+	
+	/**
+	 * Set the flush window of batches, small messages sent within the window are packed in one datagram
+	 * Only messages to endpoints added for batching are batched
+	 * @param window the max delay of a message in microseconds, 0 to disable batching
+	 */
+	public void setBatchWindow(int window){
+		batcher.setWindow(window);
+	}
+	
+	/**
+	 * Set the share of the event in the bandwidth left by control, AUDIO and TOUCH messages
+	 * which are always sent first
+	 * @param event the message event
+	 * @param weight the weight, 1 by default
+	 */
+	public void setEventWeight(int event, int weight){
+		scheduler.setWeight(event, weight);
+	}
+	
+	/**
+	 * Pace unreliable messages of the event, spreading their datagrams over time instead of bursting
+	 * About a second of the rate is queued, older messages are dropped beyond
+	 * @param event the message event
+	 * @param rate the rate in bytes per second, 0 not to pace
+	 */
+	public void setPacingRate(int event, long rate){
+		scheduler.setPacingRate(event, rate);
+	}
+	
+	/**
+	 * Add an endpoint relaying several senders, such as the TURN server which also forwards the messages of a peer
+	 * Messages to and from the endpoint always carry their sender id, by which the senders are told apart
+	 * @param endpoint the endpoint
+	 */
+	public void addRelayEndpoint(Endpoint endpoint){
+		sessionTable.share(endpoint);
+	}
+	
+	/**
+	 * Add a endpoint to be sent batches, which must unpack them
+	 * @param endpoint the endpoint
+	 */
+	public void addBatchEndpoint(Endpoint endpoint){
+		batcher.add(endpoint);
+	}
+	
+	/**
+	 * Remove the endpoint to be sent batches
+	 * @param endpoint the endpoint
+	 */
+	public void removeBatchEndpoint(Endpoint endpoint){
+		batcher.remove(endpoint);
+	}
+	
+	/**
+	 * Deliver incomplete unreliable messages of the event, instead of dropping them once the fragments time out
+	 * The missing parts of the message payload are zeroed
+	 * @param event the message event
+	 * @param minRatio min ratio of received fragments, above 1 to always drop
+	 */
+	public void setPartialDelivery(int event, float minRatio){
+		reassembler.setPartialDelivery(event, minRatio);
+	}
+	
+	/**
+	 * Protect unreliable messages of the event with forward error correction
+	 * Parity datagrams are sent over each group of datagrams, from which the receiver rebuilds lost ones without a round trip
+	 * A group closes once full or after a short idle time, so a slow stream is not held back
+	 * @param event the message event
+	 * @param code XOR, REED_SOLOMON, or 0 not to protect
+	 * @param groupSize datagrams in a group, up to 128
+	 * @param parityNum parity datagrams of a group, each recovering one more loss; always 1 with XOR
+	 */
+	public void setErrorCorrection(int event, int code, int groupSize, int parityNum){
+		fecEncoder.configure(event, code, groupSize, parityNum);
+	}
+	
+	/**
+	 * Get the round trip time estimator of the endpoint
+	 * @param endpoint the remote endpoint
+	 * @return the estimator
+	 */
+	public RTTEstimator getRTTEstimator(Endpoint endpoint){
+		return getSendWindow(endpoint).getEstimator();
+	}
+	
+	/**
+	 * Get the bandwidth estimator of the endpoint, fed by the reports of the endpoint
+	 * @param endpoint the remote endpoint
+	 * @return the estimator
+	 */
+	public BandwidthEstimator getBandwidthEstimator(Endpoint endpoint){
+		return bandwidthEstimators.computeIfAbsent(endpoint, key->new BandwidthEstimator());
+	}
+	
+	private ArrivalMonitor getArrivalMonitor(Endpoint endpoint){
+		return arrivalMonitors.computeIfAbsent(endpoint, key->new ArrivalMonitor());
+	}
+	
+	/**
+	 * Forget all the state kept for an endpoint, such as the peer of a closed session or an endpoint only probed
+	 * Its windows, estimators, session ids, batch, error correction and metrics are dropped,
+	 * and the reliable messages still waiting for its ACK are given up
+	 * Endpoints not kept alive are also forgotten once idle for five minutes
+	 * @param endpoint the remote endpoint
+	 */
+	public void evict(Endpoint endpoint){
+		SendWindow window=sendWindows.remove(endpoint);
+		if(window!=null){
+			for(Segment segment:window.clear()){
+				segments.remove(segment.messageId);
+				segment.cancelTimer();
+				segment.abandon();
+			}
+		}
+		receiveWindows.keySet().removeIf(source->source.endpoint.equals(endpoint));
+		arrivalMonitors.remove(endpoint);
+		bandwidthEstimators.remove(endpoint);
+		sessionTable.remove(endpoint);
+		batcher.remove(endpoint);
+		fecEncoder.remove(endpoint);
+		fecDecoder.remove(endpoint);
+		transportMetrics.remove(endpoint);
+	}
+	
+	/**
+	 * Add a endpoint to be kept alive
+	 * @param endpoint which to be kept alive
+	 */
+	public void addKeepAliveEndpoint(Endpoint endpoint){
+		// ping the new endpoint at once, the others wait for the next tick
+		NATBinding binding=new NATBinding(keepAliveInterval);
+		if(this.keepAliveEndpoints.putIfAbsent(endpoint,binding)==null && keepAliveInterval>0)
+			ping(endpoint,binding);
+	}
+	
+	/**
+	 * Remove the endpoint to be kept alive
+	 * @param endpoint which not to be kept alive
+	 */
+	public void removeKeepAliveEndpoint(Endpoint endpoint){
+		this.keepAliveEndpoints.remove(endpoint);
+	}
+		
+	/**
+	 * Listen for incoming messages
+	 */
+	@Override
+	public void run() {	
+		try {
+			transport.listen((buffer,sender)->{
+				int size=buffer.remaining();
+				int start=buffer.position();
+				transportMetrics.path(sender).received(size);
+				Message message=(Message) Serializer.read(buffer,Message.class);
+				buffer.limit(start+size);
+				buffer.position(start);
+				if(fecDecoder.receive(sender,message,buffer))
+					receive(message,sender,size);
+			});
+		} catch (IOException e) {
+			//e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Handle a received message
+	 * @param message the message
+	 * @param sender the sender endpoint
+	 * @param size the datagram size, 0 if the message is not a datagram of its own
+	 */
+	private void receive(Message message, Endpoint sender, int size){
+		// measure the delay of the path, reported back to the sender
+		if(size>0 && message.hasTimestamp())
+			getArrivalMonitor(sender).arrived(message.getTimestamp(), size);
+		
+		// unpack the messages sent in one datagram
+		if(message.getCode()==Message.BATCH){
+			Batcher.unpack(message, (batched,data)->{
+				if(fecDecoder.receive(sender,batched,data))
+					receive(batched,sender,0);
+			});
+			return;
+		}
+		
+		// rebuild lost datagrams of the group
+		if(message.getCode()==Message.PARITY){
+			fecDecoder.recover(sender,message);
+			return;
+		}
+		
+	 	// wait for the other fragments of a large message
+	 	if(message.getCode()==Message.FRAGMENT){
+	 		message=reassembler.add(sender,message);
+	 		if(message==null)
+	 			return;
+	 	}
+	 	
+	 	// the sender may be known by its session id only, messages for handlers are dropped until it names itself again
+	 	if(!sessionTable.resolve(message,sender) && message.getCode()==Message.GENERAL)
+	 		return;
+    	
+	 	// log received messages
+	 	MessageLog.info(MessageLog.RECEIVED, message);
+	 	
+	 	// release messages acknowledged by the sender, in an ACK or piggybacked
+	 	if(message.hasAck())
+	 		acknowledge(sender,message.getAckSeq(),message.getAckBits());
+    	
+		// record the reliable message, its ACK is coalesced with others
+		// a resent message whose ACK was lost is acknowledged again but not dispatched twice
+		if(message.isReliable() && !receiveReliable(message,sender))
+			return;
+		
+    	if(message.getCode()==Message.ACK){
+    		// ACK of a single message
+    		if(message.getRepliedMessageId()!=-1)
+    			acknowledge(message.getRepliedMessageId());
+    	}
+    	else if(message.getCode()==Message.REPORT)
+    		getBandwidthEstimator(sender).update(message.getPayload());
+    	else if(message.getCode()==Message.REPLY){
+    		// the reply also proves the replied message has arrived
+    		int repliedMessageId=message.getRepliedMessageId();
+    		acknowledge(repliedMessageId);
+    		
+    		// complete the awaiting request, replies nobody waits for are dropped
+    		CompletableFuture<Message> reply=replys.remove(repliedMessageId);
+    		if(reply!=null)
+    			reply.complete(message);
+        }
+        else
+        	dispatch(message);
+	}
+	
+	/**
+	 * Hand a received message to its handler
+	 * @param message the message
+	 */
+	private void dispatch(Message message){
+		transportMetrics.messageReceived(message.getEvent());
+		reactor.dispatch(message);
+	}
+		
+    private synchronized boolean isStopped() {
+        return this.isStopped;
+    }
+
+    /**
+     * Stop all including the transport
+     */
+    public synchronized void stop(){
+        this.isStopped = true;	        
+        transport.close();
+        scheduler.stop();
+		executorService.shutdown();
+		reactor.shutdown();
+		metrics.unregister();
+		
+		// give up pending messages, the shared timer keeps running for other instances
+		segments.clear(segment->{
+			segment.cancelTimer();
+			segment.abandon();
+		});
+		replys.clear(reply->reply.complete(null));
+		
+        // stop log
+        MessageLog.stop();
+    }
+ 
+    /**
+     * Send reliable message to remote side
+     * @param message       message to be sent
+     * @param receiver      receiver endpoint
+     * @param config        reliable configuration
+     * @param replyHandler  object to handle reply 
+     * @return              result after sending the message
+     */
+    public Result sendReliableMessage(Message message, Endpoint receiver, ReliableConfiguration config, Handler replyHandler){
+		try {
+			return sendReliableMessageAsync(message,receiver,config,replyHandler).get();	// return result
+		} catch (Exception e) {
+			return new Result(Result.EXTRA_ERROR);
+		}
+	}
+    
+    /**
+     * Send reliable message to remote side without blocking
+     * The future is completed by the receiving thread, so dependent actions should be chained asynchronously if they block
+     * @param message       message to be sent
+     * @param receiver      receiver endpoint
+     * @param config        reliable configuration
+     * @param replyHandler  object to handle reply, executed in the thread pool
+     * @return              future of the result after sending the message
+     */
+    public CompletableFuture<Result> sendReliableMessageAsync(Message message, Endpoint receiver, ReliableConfiguration config, Handler replyHandler){
+		try{
+			// set the message reliable
+			message.setReliable();
+			
+			int messageId=message.getId();
+			long sendTime=System.nanoTime();
+			int replayTimeout=config!=null?config.replyTimeout:defaultConfig.replyTimeout;
+			ReliableConfiguration budget=config!=null?config:defaultConfig;
+			long ACKLifetime=2L*budget.ACKTimeout*(budget.resendNum+1);	// twice the time before giving up, waiting in the window included
+			
+			// record the reply before sending, since it may arrive before the ACK
+			CompletableFuture<Message> reply=null;
+			if(replyHandler!=null){
+				reply=new CompletableFuture<>();
+				replys.put(messageId, reply, ACKLifetime+replayTimeout);
+			}
+			CompletableFuture<Message> replyFuture=reply;
+			
+			// without configuration the ACK timeout adapts to the RTT, and the message is given up
+			// after as long as the default configuration would take
+			Segment segment;
+			if(config!=null)
+				segment=new Segment(message,receiver,config.resendNum,config.ACKTimeout);
+			else
+				segment=new Segment(message,receiver,(long)defaultConfig.ACKTimeout*(defaultConfig.resendNum+1));
+			
+			// the message is sent once it fits in the receiver window
+			segments.put(messageId, segment, ACKLifetime);
+			transportMetrics.messageSent(message.getEvent());
+			getSendWindow(receiver).submit(segment);
+			
+			return segment.completion().thenCompose(acked->{
+				if(!acked){
+					replys.remove(messageId);
+					return CompletableFuture.completedFuture(new Result(Result.TIMEOUT));
+				}
+				if(replyFuture==null)
+					return CompletableFuture.completedFuture(new Result(Result.RECEIVED));
+				
+				// wait for reply
+				Timeout timeout=scheduleReplyTimeout(messageId,replayTimeout);
+				replyFuture.thenAccept(replyMessage->{
+					timeout.cancel();
+					if(replyMessage!=null)
+						transportMetrics.path(receiver).replied(System.nanoTime()-sendTime);
+				});
+				return replyFuture.thenApplyAsync(replyMessage->replyMessage==null?new Result(Result.TIMEOUT):
+					new Result(Result.REPLIED,replyHandler.handle(replyMessage)),executorService);
+			}).exceptionally(e->new Result(Result.EXTRA_ERROR));
+		}
+		catch(Exception e){
+			return CompletableFuture.completedFuture(new Result(Result.EXTRA_ERROR));
+		}
+	}
+    
+    /**
+     * Get the sliding window of the receiver
+     * @param receiver the receiver endpoint
+     * @return the window
+     */
+    private SendWindow getSendWindow(Endpoint receiver){
+    	return sendWindows.computeIfAbsent(receiver, endpoint->new SendWindow(windowSize,this::transmit));
+    }
+    
+    /**
+     * Send a segment which has entered its window
+     * @param segment the reliable message
+     */
+    private void transmit(Segment segment){
+    	Message message=segment.message;
+    	Endpoint receiver=segment.receiver;
+    	try {
+    		message.setSeq(segment.seq, getSendWindow(receiver).getBase());
+    		ReceiveWindow window=attachAck(message,receiver);
+    		sessionTable.prepare(message,receiver);
+    		message.setTimestamp();
+    		
+    		segment.data=Serializer.write(message);
+    		
+    		// the piggybacked ACK replaces the delayed one if it leaves at once in one datagram
+    		if(window!=null && segment.data.length<=maxDatagramSize)
+    			window.settleAck(message);
+    	} catch (Exception e) {
+    		segments.remove(segment.messageId);
+    		segment.abandon();
+    		return;
+    	}
+    	try {
+   		 	// log sent messages
+   		 	MessageLog.info(MessageLog.SENT, message);
+   		 	
+   		 	segment.sent();
+			send(segment.data,message,receiver);
+		} catch (IOException e) {
+			//e.printStackTrace();
+		}
+    	scheduleResend(segment);
+    }
+    
+    /**
+     * Resend the message when its ACK is not received in time, or give it up after the last resend
+     * @param segment the reliable message in flight
+     */
+    private void scheduleResend(Segment segment){
+    	segment.setTimer(timer.schedule(()->{
+    		if(segment.retry()){
+    			transportMetrics.path(segment.receiver).retransmitted();
+    			try {
+					send(segment.data,segment.message,segment.receiver);
+				} catch (IOException e) {
+					//e.printStackTrace();
+				}
+    			scheduleResend(segment);
+    		}
+    		else if(segments.remove(segment.messageId)!=null)
+    			transportMetrics.path(segment.receiver).timedOut();
+    	}, segment.getACKTimeout()));
+    }
+    
+    /**
+     * Give up waiting for the reply after the timeout
+     * @param messageId the message id waiting for reply
+     * @param replyTimeout time to wait for reply
+     * @return the timeout, cancelled when the reply arrives
+     */
+    private Timeout scheduleReplyTimeout(int messageId, int replyTimeout){
+    	return timer.schedule(()->{
+    		CompletableFuture<Message> reply=replys.remove(messageId);
+    		if(reply!=null)
+    			reply.complete(null);
+    	}, replyTimeout);
+    }
+    
+    /**
+     * Record a received reliable message and acknowledge it
+     * Duplicates and every few messages are acknowledged at once, others after a short delay unless piggybacked earlier
+     * @param message the reliable message
+     * @param sender the sender endpoint
+     * @return false if the message is a duplicate
+     */
+    private boolean receiveReliable(Message message, Endpoint sender){
+    	ReceiveWindow window=receiveWindows.computeIfAbsent(source(sender,message), source->new ReceiveWindow());
+    	boolean isNew=window.receive(message.getSeq(), message.getSeqBase());
+    	if(!isNew || window.getUnackedNum()>=ACK_EVERY)
+    		sendAck(sender,window,!isNew);
+    	else if(!window.isACKScheduled())
+    		window.setACKTimer(timer.schedule(()->sendAck(sender,window,false), ACK_DELAY));
+    	return isNew;
+    }
+    
+    /**
+     * Get the source of a reliable message, told apart by sender id behind a relay
+     * @param sender the sender endpoint
+     * @param message the message, its sender id resolved
+     * @return the source
+     */
+    private Source source(Endpoint sender, Message message){
+    	return new Source(sender,sessionTable.isShared(sender)?message.getSenderId():null);
+    }
+    
+    /**
+     * Send the acknowledgement state of the window in an ACK message
+     * @param receiver who sent the acknowledged messages
+     * @param window the window of received messages
+     * @param force send even if no message has been received since the last acknowledgement
+     */
+    private void sendAck(Endpoint receiver, ReceiveWindow window, boolean force){
+    	Message ACKMessage=new Message(null,Message.ACK,-1,null);
+    	if(!window.attachAck(ACKMessage,force))
+    		return;
+    	try {
+    		MessageLog.info(MessageLog.SENT, ACKMessage);
+    		send(ACKMessage,receiver);
+    	} catch (Exception e) {
+    		//e.printStackTrace();
+    	}
+    }
+    
+    /**
+     * Send the report of arrivals to their sender
+     * @param sender the sender endpoint
+     * @param report the report
+     */
+    private void sendReport(Endpoint sender, byte[] report){
+    	Message reportMessage=new Message(null,Message.REPORT,-1,report);
+    	try {
+    		MessageLog.info(MessageLog.SENT, reportMessage);
+    		send(reportMessage,sender);
+    	} catch (Exception e) {
+    		//e.printStackTrace();
+    	}
+    }
+    
+    /**
+     * Piggyback the pending acknowledgement of messages from the receiver
+     * The delayed ACK is still pending, unless the window is told the message has left in one datagram
+     * Nothing is piggybacked to a relay, which of its senders gets the message is not known
+     * @param message the outgoing message
+     * @param receiver the receiver endpoint
+     * @return the window whose state is attached, null if none
+     */
+    private ReceiveWindow attachAck(Message message, Endpoint receiver){
+    	if(sessionTable.isShared(receiver))
+    		return null;
+    	ReceiveWindow window=receiveWindows.get(new Source(receiver,null));
+    	if(window==null || !window.peekAck(message))
+    		return null;
+    	return window;
+    }
+    
+    /**
+     * Release the messages covered by an acknowledgement
+     * @param sender who acknowledges
+     * @param ackSeq all messages before this sequence number have been received
+     * @param ackBits bit i set if message "ackSeq+1+i" has been received
+     */
+    private void acknowledge(Endpoint sender, int ackSeq, long ackBits){
+    	SendWindow window=sendWindows.get(sender);
+    	if(window==null)
+    		return;
+    	for(Segment segment:window.acknowledged(ackSeq, ackBits)){
+    		segments.remove(segment.messageId);
+    		segment.cancelTimer();
+    		if(segment.acknowledge())
+    			transportMetrics.path(sender).acknowledged(segment.getRTT());
+    	}
+    }
+    
+    /**
+     * Release the acknowledged message from its window
+     * @param messageId the acknowledged message id
+     */
+    private void acknowledge(int messageId){
+    	Segment segment=segments.remove(messageId);
+    	if(segment!=null){
+    		segment.cancelTimer();
+    		if(segment.acknowledge())
+    			transportMetrics.path(segment.receiver).acknowledged(segment.getRTT());
+    	}
+    }
+    
+    /**
+     * Send unreliable message to remote side
+     * @param message       message to be sent
+     * @param receiver      receiver endpoint
+     */
+    public void sendMessage(Message message,Endpoint receiver){
+    	sendMessage(message,Collections.singletonList(receiver));
+	}
+    
+    /**
+     * Send unreliable message to several remote sides, serialized once for all of them
+     * Acknowledgements are only piggybacked when there is one receiver, they would be wrong for the others
+     * The message may be fragmented, paced or lost, so a piggybacked ACK does not replace the delayed one
+     * @param message       message to be sent
+     * @param receivers     receiver endpoints
+     */
+    public void sendMessage(Message message,Collection<Endpoint> receivers){
+    	try{
+    		if(receivers.isEmpty())
+    			return;
+    		
+    		// state piggybacked for the receivers of a previous send does not belong to these ones
+    		message.clearAck();
+    		message.setConfirmedSession(-1);
+    		message.setResyncSession(-1);
+    		if(receivers.size()==1){
+    			Endpoint receiver=receivers.iterator().next();
+    			attachAck(message,receiver);
+    			sessionTable.prepare(message,receiver);
+    		}
+    		else
+    			sessionTable.prepare(message,receivers);
+    		
+    		// log sent messages
+    		MessageLog.info(MessageLog.SENT, message);
+    		
+    		//byte tempBuffer[]=Serialization.serialize(message);
+    		message.setTimestamp();
+    		byte tempBuffer[]=Serializer.write(message);
+    		
+    		// room is left for the parity header if protected, so parity datagrams fit too
+    		int event=message.getEvent();
+    		int maxSize=maxDatagramSize-fecEncoder.getOverhead(event);
+    		byte[][] datagrams;
+    		if(tempBuffer.length<=maxSize)
+    			datagrams=new byte[][]{tempBuffer};
+    		else{
+    			int fragmentSize=Math.max(1, maxSize-FRAGMENT_HEADER_SIZE);
+    			datagrams=new byte[(tempBuffer.length+fragmentSize-1)/fragmentSize][];
+    			for(int i=0;i<datagrams.length;i++)
+    				datagrams[i]=fragment(tempBuffer,message,i,fragmentSize);
+    		}
+    		
+    		// queued by event, fragments one by one so they can be paced, and dropped together if the queue overflows
+    		// the datagrams are shared by the receivers, the transports copy them
+    		for(Endpoint receiver:receivers){
+    			transportMetrics.messageSent(event);
+    			scheduler.submit(event,datagrams,receiver);
+    			for(int i=0;i<datagrams.length;i++)
+    				fecEncoder.add(event,message.getId(),datagrams.length>1?i:-1,datagrams[i],receiver);
+    		}
+    	}
+    	catch(Exception e){
+    		//e.printStackTrace();
+    	}
+	}
+    
+    /**
+     * Send the serialized message, in fragments if larger than the max datagram size
+     * @param data the serialized message
+     * @param message the message
+     * @param receiver the receiver endpoint
+     * @throws IOException if the transport fails
+     */
+    private void send(byte[] data, Message message, Endpoint receiver) throws IOException{
+    	if(data.length<=maxDatagramSize){
+    		batcher.send(data,receiver);
+    		return;
+    	}
+    	batcher.flush(receiver);
+    	int fragmentSize=maxDatagramSize-FRAGMENT_HEADER_SIZE;
+    	for(int i=0;i*fragmentSize<data.length;i++)
+    		write(fragment(data,message,i,fragmentSize),receiver);
+    }
+    
+    /**
+     * Serialize one fragment of a message too large for one datagram
+     * @param data the serialized message
+     * @param message the message
+     * @param index the fragment index
+     * @param fragmentSize the payload size of each fragment
+     * @return the serialized fragment
+     */
+    private static byte[] fragment(byte[] data, Message message, int index, int fragmentSize){
+    	int fragmentNum=(data.length+fragmentSize-1)/fragmentSize;
+    	int offset=index*fragmentSize;
+    	byte[] payload=Arrays.copyOfRange(data, offset, Math.min(data.length, offset+fragmentSize));
+    	Message fragment=Message.fragment(message.getId(), message.getEvent(), index, fragmentNum, fragmentSize, payload);
+    	fragment.setTimestamp();
+    	return Serializer.write(fragment);
+    }
+    
+    /**
+     * Serialize and send the message
+     * With a direct transport, a message fitting in one datagram and not batched is written straight into a pooled direct buffer
+     * @param message the message
+     * @param receiver the receiver endpoint
+     * @throws IOException if the transport fails
+     */
+    private void send(Message message, Endpoint receiver) throws IOException{
+    	sessionTable.prepare(message,receiver);
+    	if(transport.isDirect() && !batcher.isBatched(receiver)){
+    		ByteBuffer buffer=bufferPool.acquire();
+    		try{
+    			if(Serializer.write(message,buffer) && buffer.remaining()<=maxDatagramSize){
+    				refreshBinding(receiver);
+    				transportMetrics.path(receiver).sent(buffer.remaining());
+    				transport.send(buffer,receiver);
+    				return;
+    			}
+    		}
+    		finally{
+    			bufferPool.release(buffer);
+    		}
+    	}
+    	send(Serializer.write(message),message,receiver);
+    }
+    
+    /**
+     * Record outbound traffic to a kept-alive endpoint, which postpones its next ping
+     * @param receiver the receiver endpoint
+     */
+    private void refreshBinding(Endpoint receiver){
+    	NATBinding binding=keepAliveEndpoints.get(receiver);
+    	if(binding!=null)
+    		binding.sent();
+    }
+    
+    /**
+     * Send one datagram
+     * @param data the datagram
+     * @param receiver the receiver endpoint
+     * @throws IOException if the transport fails
+     */
+    private void write(byte[] data, Endpoint receiver) throws IOException{
+    	Message.stamp(data);
+    	refreshBinding(receiver);
+    	transportMetrics.path(receiver).sent(data.length);
+    	transport.send(ByteBuffer.wrap(data),receiver);
+    }
+    
+    /**
+     * Send PING message to endpoints to keep alive
+     * Endpoints are only pinged once idle for the interval learnt from their NAT bindings
+     * @param timeout shortest interval between pings
+     */
+    public void keepAlive(int timeout){
+    	keepAliveInterval=Math.max(1, timeout);
+    	keepAliveEndpoints.replaceAll((endpoint,binding)->new NATBinding(keepAliveInterval));
+    	timer.schedule(new Runnable(){
+    		public void run() {
+    			if(isStopped())
+    				return;
+    			keepAliveEndpoints.forEach((endpoint,binding)->ping(endpoint,binding));
+    			timer.schedule(this, Math.min(KEEP_ALIVE_TICK, keepAliveInterval));
+    		}
+    	}, 0);
+    }
+    
+    /**
+     * Ping the endpoint if no datagram has been sent to it for the interval
+     * The answer, or its absence, tunes the interval
+     * @param endpoint the endpoint to be pinged
+     * @param binding the keep-alive state of the endpoint
+     */
+    private void ping(Endpoint endpoint, NATBinding binding){
+    	if(binding.shouldPing())
+    		probe(endpoint).thenAccept(result->binding.pinged(result.getFlag()==Result.RECEIVED));
+    }
+    
+    /**
+     * Test endpoint connected or not
+     * @param remoter  remote user endpoint to be tested 
+     * @return true if connected else false
+     */
+    public boolean testConnect(Endpoint remoter){
+    	try {
+    		return probe(remoter).get().getFlag()==Result.RECEIVED;
+    	} catch (Exception e) {
+    		return false;
+    	}
+    }
+    
+    /**
+     * Send a reliable PING message, without waiting for its ACK
+     * @param remoter the remote endpoint
+     * @return the future of the result
+     */
+    private CompletableFuture<Result> probe(Endpoint remoter){
+    	Message message=new Message(userId,Message.PING,-1,null);
+    	// probe unknown endpoints quickly, measured ones with their own timeout
+    	RTTEstimator estimator=getRTTEstimator(remoter);
+    	ReliableConfiguration config=new ReliableConfiguration(estimator.hasSample()?estimator.getRTO():PROBE_TIMEOUT,0,2);
+    	return sendReliableMessageAsync(message,remoter,config,null);
+    }
+    
+    /**
+     * Reliable configuration
+     * @author Yifan Ruan (ry222ad@student.lnu.se)
+     */
+    class ReliableConfiguration{
+    	int ACKTimeout;
+    	int replyTimeout;
+    	int resendNum;
+    	
+    	public ReliableConfiguration(int ACKTimeout, int replyTimeout,int resendNum){
+    		this.ACKTimeout=ACKTimeout;
+    		this.replyTimeout=replyTimeout;
+    		this.resendNum=resendNum;
+    	}
+    }
+    	
+}
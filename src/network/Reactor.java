@@ -14,29 +14,71 @@
  * limitations under the License.
  *******************************************************************************/
 package network;
-
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
+import java.util.Queue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import network.Handler;
+import network.assist.Threads;
+import network.metrics.Histogram;
+import network.metrics.Meter;
+import network.metrics.Metrics;
+import network.protocol.Event;
 import network.protocol.Message;
 
 /**
  * Dispatching the message to proper handler depending on the event
+ * Messages of one event are handled one at a time in arrival order, in the lane of the event
+ * A lane occupies at most one worker, so the workers are bounded by the number of events
+ * Each lane holds a bounded number of waiting messages, what happens beyond it depends on the overflow policy
+ * The depth, drops and dispatch latency of each lane are recorded as "event.NAME.queueDepth",
+ * "event.NAME.dropped" and "event.NAME.dispatchLatency" in microseconds
  * @author Yifan Ruan (ry222ad@student.lnu.se)
  */
 public class Reactor {
-	private Map<Integer,Handler> handlers=new ConcurrentHashMap<>();			// registered handlers
-	private ExecutorService executorService = Executors.newCachedThreadPool();
+	// overflow policies of a full lane
+	public final static int DROP_NEWEST=0;		// the incoming message is dropped
+	public final static int DROP_OLDEST=1;		// the oldest waiting message is dropped
+	public final static int BLOCK=2;			// the receiving thread waits a while for room, then drops the incoming message
+	public final static int COALESCE=3;			// only the latest message waits, whatever the capacity
+	
+	private final static int MAX_BATCH=64;					// messages handled before a busy lane gives its worker up
+	private final static int DEFAULT_CAPACITY=1024;			// waiting messages of an event
+	private final static int VIDEO_CAPACITY=4;				// waiting frames, a late frame is worth less than the next one
+	private final static int BLOCK_WAIT=10;					// max wait in milliseconds before checking for shutdown again
+	private final static int MAX_BLOCK=50;					// max time in milliseconds a full lane holds the receiving thread
+	
+	private volatile Lane[] lanes=new Lane[Event.defaultEvents.length];	// lane of each event, indexed by event
+	private ExecutorService executorService = Threads.newPool(0,"RUDP handler");
+	private final Metrics metrics;			// where the lanes are measured
+	
+	/**
+	 * Constructor
+	 */
+	public Reactor(){
+		this(new Metrics());
+	}
+	
+	/**
+	 * Constructor
+	 * @param metrics the registry of the lane metrics
+	 */
+	public Reactor(Metrics metrics){
+		this.metrics=metrics;
+		setOverflowPolicy(Event.VIDEO, VIDEO_CAPACITY, DROP_OLDEST);
+	}
 	
 	/**
 	 * Register handler
 	 * @param event  which message to be handled
 	 * @param handler object to handle message
 	 */
-	public void register(int event,Handler handler){
-		this.handlers.put(event, handler);
+	public synchronized void register(int event,Handler handler){
+		Lane lane=createLane(event);
+		if(lane!=null)
+			lane.handler=handler;
 	}
 	
 	/**
@@ -44,7 +86,45 @@ public class Reactor {
 	 * @param event which message to be handled
 	 */
 	public void unregister(int event){
-		this.handlers.remove(event);
+		Lane lane=getLane(event);
+		if(lane!=null)
+			lane.handler=null;
+	}
+	
+	/**
+	 * Set how many messages of the event may wait for the handler, and what happens beyond
+	 * With BLOCK the thread waiting is the one receiving datagrams, with channels the selector thread shared by all sockets,
+	 * so it waits at most 50 milliseconds before dropping the message as with DROP_NEWEST
+	 * @param event the event
+	 * @param capacity max waiting messages
+	 * @param policy DROP_NEWEST, DROP_OLDEST, BLOCK or COALESCE
+	 */
+	public synchronized void setOverflowPolicy(int event, int capacity, int policy){
+		Lane lane=createLane(event);
+		if(lane!=null){
+			lane.capacity=Math.max(1, capacity);
+			lane.policy=policy;
+		}
+	}
+	
+	/**
+	 * Get the number of messages waiting for the handler
+	 * @param event the event
+	 * @return the queue depth
+	 */
+	public int getQueueDepth(int event){
+		Lane lane=getLane(event);
+		return lane!=null?lane.queue.size():0;
+	}
+	
+	/**
+	 * Get the number of messages dropped because the handler could not keep up
+	 * @param event the event
+	 * @return the drop count
+	 */
+	public long getDropCount(int event){
+		Lane lane=getLane(event);
+		return lane!=null?lane.drops.getCount():0;
 	}
 	
 	/**
@@ -52,13 +132,11 @@ public class Reactor {
 	 * @param message incoming message
 	 */
 	public void dispatch(Message message){
-		executorService.execute(new Runnable() {
-		    public void run() {
-				int event=message.getEvent();
-				if(handlers.containsKey(event))
-					handlers.get(event).handle(message);		    
-			}
-		});
+		Lane lane=getLane(message.getEvent());
+		if(lane==null || lane.handler==null)
+			return;
+		if(lane.offer(message))
+			lane.schedule();
 	}
 	
 	/**
@@ -67,4 +145,148 @@ public class Reactor {
 	public void shutdown(){
 		this.executorService.shutdown();
 	}
+	
+	private Lane getLane(int event){
+		Lane[] lanes=this.lanes;
+		return event>=0 && event<lanes.length?lanes[event]:null;
+	}
+	
+	// called holding the reactor lock
+	private Lane createLane(int event){
+		if(event<0)
+			return null;
+		Lane[] lanes=this.lanes;
+		if(event>=lanes.length)
+			lanes=Arrays.copyOf(lanes, event+1);
+		if(lanes[event]==null)
+			lanes[event]=new Lane(event);
+		this.lanes=lanes;
+		return lanes[event];
+	}
+	
+	/**
+	 * Messages of one event waiting for its handler
+	 */
+	private class Lane implements Runnable{
+		private volatile Handler handler;
+		private volatile int capacity=DEFAULT_CAPACITY;
+		private volatile int policy=DROP_NEWEST;
+		private final Queue<Dispatch> queue=new LinkedBlockingQueue<>();		// size() in constant time
+		private final Meter drops;
+		private final Histogram latency;										// time from dispatch to handling, in microseconds
+		private final AtomicBoolean isScheduled=new AtomicBoolean(false);	// a worker is handling or about to handle the lane
+		
+		Lane(int event){
+			String prefix="event."+Event.name(event);
+			drops=metrics.meter(prefix+".dropped");
+			latency=metrics.histogram(prefix+".dispatchLatency");
+			metrics.gauge(prefix+".queueDepth", ()->queue.size());
+		}
+		
+		/**
+		 * Queue a message, applying the overflow policy if the lane is full
+		 * @param message the message
+		 * @return false if the message has been dropped
+		 */
+		boolean offer(Message message){
+			int policy=this.policy;
+			int capacity=policy==COALESCE?1:this.capacity;
+			if(queue.size()>=capacity){
+				switch(policy){
+				case DROP_OLDEST:
+				case COALESCE:
+					while(queue.size()>=capacity && queue.poll()!=null)
+						drops.mark();
+					break;
+				case BLOCK:
+					if(!awaitRoom(capacity)){
+						drops.mark();
+						return false;
+					}
+					break;
+				default:
+					drops.mark();
+					return false;
+				}
+			}
+			queue.offer(new Dispatch(message));
+			return true;
+		}
+		
+		/**
+		 * Wait until the handler has taken messages out of the full lane, for a bounded time
+		 * @param capacity the capacity
+		 * @return false if timed out, shut down or interrupted while waiting
+		 */
+		private synchronized boolean awaitRoom(int capacity){
+			// the lane is scheduled while not empty, so the handler keeps making room
+			long deadline=System.nanoTime()+MAX_BLOCK*1000000L;
+			while(queue.size()>=capacity){
+				long remaining=(deadline-System.nanoTime())/1000000;
+				if(remaining<=0 || executorService.isShutdown())
+					return false;
+				try {
+					wait(Math.min(BLOCK_WAIT, remaining));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Hand the lane to a worker unless one already has it
+		 */
+		void schedule(){
+			if(!isScheduled.compareAndSet(false, true))
+				return;
+			try{
+				executorService.execute(this);
+			}
+			catch(RejectedExecutionException e){
+				// shut down, the message is dropped
+				queue.clear();
+				isScheduled.set(false);
+			}
+		}
+		
+		@Override
+		public void run() {
+			Dispatch dispatch;
+			for(int i=0;i<MAX_BATCH && (dispatch=queue.poll())!=null;i++){
+				if(policy==BLOCK){
+					synchronized(this){
+						notifyAll();
+					}
+				}
+				Handler handler=this.handler;
+				if(handler==null)
+					continue;
+				latency.record((System.nanoTime()-dispatch.time)/1000);
+				try{
+					handler.handle(dispatch.message);
+				}
+				catch(Exception e){
+					//e.printStackTrace();
+				}
+			}
+			isScheduled.set(false);
+			// a message may have arrived after the last poll, or the batch ended early
+			if(!queue.isEmpty())
+				schedule();
+		}
+	}
+	
+	/**
+	 * Message waiting in a lane, with the time it was dispatched
+	 */
+	private static class Dispatch{
+		private final Message message;
+		private final long time=System.nanoTime();
+		
+		Dispatch(Message message){
+			this.message=message;
+		}
+	}
 }
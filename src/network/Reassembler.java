@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import network.TimingWheel.Timeout;
+import network.address.Endpoint;
+import network.assist.BufferPool;
+import network.assist.Serializer;
+import network.protocol.Message;
+
+/**
+ * Reassembling messages sent in fragments
+ * Each fragment is copied to its offset of a pooled buffer, and incomplete messages are dropped after the timeout
+ * For unreliable events allowing partial loss, an incomplete message is delivered with the missing parts zeroed
+ */
+class Reassembler {
+	private final static int MAX_MESSAGE_SIZE=1<<20;		// larger messages are refused
+
+	private Map<Key,Assembly> assemblies=new ConcurrentHashMap<>();
+	private Map<Integer,Float> partialRatios=new ConcurrentHashMap<>();		// min received ratio of each event allowing partial loss
+	private BufferPool pool=new BufferPool(16);
+
+	private TimingWheel timer;
+	private int timeout;
+	private BiConsumer<Endpoint,Message> partialConsumer;		// who takes incomplete messages
+
+	/**
+	 * Constructor
+	 * @param timer the timer expiring incomplete messages
+	 * @param timeout time to wait for the missing fragments
+	 * @param partialConsumer who takes incomplete messages of events allowing partial loss
+	 */
+	Reassembler(TimingWheel timer, int timeout, BiConsumer<Endpoint,Message> partialConsumer){
+		this.timer=timer;
+		this.timeout=timeout;
+		this.partialConsumer=partialConsumer;
+	}
+
+	/**
+	 * Allow incomplete unreliable messages of the event to be delivered
+	 * @param event the message event
+	 * @param minRatio min ratio of received fragments, above 1 to disallow
+	 */
+	void setPartialDelivery(int event, float minRatio){
+		if(minRatio>1)
+			partialRatios.remove(event);
+		else
+			partialRatios.put(event, minRatio);
+	}
+
+	/**
+	 * Add a received fragment
+	 * @param sender the sender endpoint
+	 * @param fragment the fragment
+	 * @return the reassembled message if the fragment is the last missing one, otherwise null
+	 */
+	Message add(Endpoint sender, Message fragment){
+		int num=fragment.getFragmentNum();
+		int size=fragment.getFragmentSize();
+		int index=fragment.getFragmentIndex();
+		byte[] payload=fragment.getPayload();
+		if(num<=0 || size<=0 || (long)num*size>MAX_MESSAGE_SIZE || index<0 || index>=num || payload==null
+				|| payload.length>size || (index<num-1 && payload.length!=size))
+			return null;
+
+		Key key=new Key(sender,fragment.getRepliedMessageId());
+		Assembly assembly=assemblies.computeIfAbsent(key, k->new Assembly(k,fragment.getEvent(),num,size));
+		synchronized(assembly){
+			if(assembly.isDone || assembly.num!=num || assembly.size!=size || !assembly.put(index,payload))
+				return null;
+			if(assembly.receivedNum<assembly.num)
+				return null;
+			assembly.isDone=true;
+		}
+		assemblies.remove(key);
+		assembly.timer.cancel();
+		return assembly.decode();
+	}
+
+	/**
+	 * Drop or partially deliver an incomplete message
+	 * @param assembly the incomplete message
+	 */
+	private void expire(Assembly assembly){
+		synchronized(assembly){
+			if(assembly.isDone)
+				return;
+			assembly.isDone=true;
+		}
+		assemblies.remove(assembly.key);
+
+		// the header is in the first fragment
+		Float minRatio=partialRatios.get(assembly.event);
+		if(minRatio==null || !assembly.received.get(0) || assembly.receivedNum<minRatio*assembly.num){
+			pool.release(assembly.buffer);
+			return;
+		}
+		assembly.zeroMissing();
+		Message message=assembly.decode();
+		if(message!=null && !message.isReliable())
+			partialConsumer.accept(assembly.key.sender, message);
+	}
+
+	/**
+	 * Identifier of a fragmented message
+	 */
+	private static class Key{
+		final Endpoint sender;
+		final int messageId;
+
+		Key(Endpoint sender, int messageId){
+			this.sender=sender;
+			this.messageId=messageId;
+		}
+
+		@Override
+		public int hashCode() {
+			return sender.hashCode()*31+messageId;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(obj instanceof Key){
+				Key key=(Key) obj;
+				return key.messageId==messageId && key.sender.equals(sender);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Fragments of one message received so far
+	 */
+	private class Assembly{
+		final Key key;
+		final int event;
+		final int num;
+		final int size;
+		final byte[] buffer;
+		final BitSet received;
+		final Timeout timer;
+		int receivedNum=0;
+		boolean isDone=false;
+
+		Assembly(Key key, int event, int num, int size){
+			this.key=key;
+			this.event=event;
+			this.num=num;
+			this.size=size;
+			this.buffer=pool.acquire(num*size);
+			this.received=new BitSet(num);
+			this.timer=Reassembler.this.timer.schedule(()->expire(this), timeout);
+		}
+
+		/**
+		 * Copy the fragment to its offset
+		 * @return false if the fragment has been received
+		 */
+		boolean put(int index, byte[] payload){
+			if(received.get(index))
+				return false;
+			System.arraycopy(payload, 0, buffer, index*size, payload.length);
+			received.set(index);
+			receivedNum++;
+			return true;
+		}
+
+		void zeroMissing(){
+			for(int index=received.nextClearBit(0);index<num;index=received.nextClearBit(index+1))
+				Arrays.fill(buffer, index*size, Math.min(buffer.length, (index+1)*size), (byte)0);
+		}
+
+		/**
+		 * Deserialize the message and give the buffer back to the pool
+		 * The buffer may be longer than the message, the rest is never read
+		 * @return the message, or null if it cannot be read
+		 */
+		Message decode(){
+			try{
+				return (Message)Serializer.read(buffer, Message.class);
+			}
+			catch(Exception e){
+				return null;
+			}
+			finally{
+				pool.release(buffer);
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import network.TimingWheel.Timeout;
+import network.protocol.Message;
+
+/**
+ * Reliable messages received from one endpoint, acknowledged cumulatively with a selective bitmap
+ * Instead of one ACK per message, the state is sent after a short delay or piggybacked on outgoing messages
+ * A piggybacked state only counts as sent when it leaves at once in a datagram of its own, the delayed ACK stands otherwise
+ * The same bitmap tells resent messages apart, in constant memory per endpoint
+ */
+class ReceiveWindow {
+	final static int SIZE=64;				// the bitmap covers the whole send window of the sender
+	private final static int HISTORY=4096;	// messages this far behind the window are still taken as duplicates
+
+	private boolean isInitialized=false;
+	private int base;						// lowest sequence number not received
+	private long bits;						// bit i set if message "base+i" has been received
+
+	private int unackedNum=0;				// messages received since the last acknowledgement
+	private Timeout ACKTimer;				// pending delayed ACK
+
+	/**
+	 * Record a received reliable message
+	 * @param seq the sequence number of the message
+	 * @param seqBase the lowest sequence number the sender has not seen acknowledged
+	 * @return false if the message has been received before
+	 */
+	synchronized boolean receive(int seq, int seqBase){
+		if(!isInitialized){
+			base=seqBase;
+			bits=0;
+			isInitialized=true;
+		}
+
+		// the sender no longer waits for messages below its base, whether received or given up
+		if(seqBase-base>0)
+			slide(seqBase-base);
+
+		int distance=seq-base;
+		if(distance<0){
+			if(distance>=-HISTORY)
+				return false;
+			// far behind means the sender restarted with another initial sequence number
+			base=seqBase;
+			bits=0;
+			distance=seq-base;
+		}
+		if(distance>=SIZE)
+			slide(distance-SIZE+1);
+		distance=seq-base;
+
+		long bit=1L<<distance;
+		if((bits & bit)!=0)
+			return false;
+		bits|=bit;
+		while((bits & 1)!=0)
+			slide(1);
+		unackedNum++;
+		return true;
+	}
+
+	private void slide(int shift){
+		base+=shift;
+		bits=shift>=Long.SIZE?0:bits>>>shift;
+	}
+
+	/**
+	 * Get the number of messages received and not acknowledged yet
+	 * @return the number of messages
+	 */
+	synchronized int getUnackedNum(){
+		return unackedNum;
+	}
+
+	/**
+	 * Set the pending delayed ACK
+	 * @param timer the timeout sending the delayed ACK
+	 */
+	synchronized void setACKTimer(Timeout timer){
+		ACKTimer=timer;
+	}
+
+	/**
+	 * Check a delayed ACK pending or not
+	 * @return true if pending
+	 */
+	synchronized boolean isACKScheduled(){
+		return ACKTimer!=null;
+	}
+
+	/**
+	 * Attach the acknowledgement state to an outgoing message, cancelling the delayed ACK
+	 * @param message the outgoing message
+	 * @param force attach even if nothing new is received
+	 * @return true if attached
+	 */
+	synchronized boolean attachAck(Message message, boolean force){
+		if(!isInitialized || (unackedNum==0 && !force))
+			return false;
+		message.setAck(base, bits>>>1);
+		unackedNum=0;
+		if(ACKTimer!=null){
+			ACKTimer.cancel();
+			ACKTimer=null;
+		}
+		return true;
+	}
+
+	/**
+	 * Attach the acknowledgement state to an outgoing message, leaving the delayed ACK pending
+	 * @param message the outgoing message
+	 * @return true if attached
+	 */
+	synchronized boolean peekAck(Message message){
+		if(!isInitialized || unackedNum==0)
+			return false;
+		message.setAck(base, bits>>>1);
+		return true;
+	}
+
+	/**
+	 * Count a state attached by "peekAck" as sent, cancelling the delayed ACK
+	 * Nothing is done if messages have been received since, they still wait for an acknowledgement
+	 * @param message the message carrying the state
+	 */
+	synchronized void settleAck(Message message){
+		if(!message.hasAck() || message.getAckSeq()!=base || message.getAckBits()!=bits>>>1)
+			return;
+		unackedNum=0;
+		if(ACKTimer!=null){
+			ACKTimer.cancel();
+			ACKTimer=null;
+		}
+	}
+}
@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import network.TimingWheel.Timeout;
+import network.address.Endpoint;
+import network.protocol.Message;
+
+/**
+ * Selective-repeat sliding window of reliable messages sent to one endpoint
+ * Messages whose sequence numbers are less than "size" after the lowest unacknowledged one are in flight
+ * at the same time, each one acknowledged and resent on its own
+ */
+class SendWindow {
+	final static int MAX_SIZE=ReceiveWindow.SIZE;				// the receiver acknowledges at most this many messages at once
+	
+	private int size;											// max distance between sequence numbers in flight
+	private Map<Integer,Segment> inFlight=new LinkedHashMap<>();	// unacknowledged messages in sequence order, keyed by message id
+	private Queue<Segment> backlog=new ArrayDeque<>();			// messages waiting for a free slot
+	private Consumer<Segment> transmitter;						// who puts a segment on the wire
+	private RTTEstimator estimator=new RTTEstimator();			// round trip time to the endpoint
+	private int nextSeq=new Random().nextInt();					// random initial sequence number, telling restarts apart
+
+	/**
+	 * Constructor
+	 * @param size the window size
+	 * @param transmitter who sends a segment once it enters the window
+	 */
+	SendWindow(int size, Consumer<Segment> transmitter){
+		this.size=Math.min(MAX_SIZE, Math.max(1, size));
+		this.transmitter=transmitter;
+	}
+
+	/**
+	 * Set the window size
+	 * @param size the window size, 1 falls back to stop-and-wait
+	 */
+	void setSize(int size){
+		Segment next;
+		synchronized(this){
+			this.size=Math.min(MAX_SIZE, Math.max(1, size));
+		}
+		while((next=admit())!=null)
+			transmitter.accept(next);
+	}
+
+	/**
+	 * Submit a segment, it is sent at once if it fits in the window, otherwise when the window slides
+	 * @param segment the segment to be sent
+	 */
+	void submit(Segment segment){
+		segment.window=this;
+		synchronized(this){
+			segment.seq=nextSeq++;
+			if(!backlog.isEmpty() || segment.seq-getBase()>=size){
+				backlog.add(segment);
+				return;
+			}
+			inFlight.put(segment.messageId, segment);
+		}
+		transmitter.accept(segment);
+	}
+
+	/**
+	 * Get the round trip time estimator of the endpoint
+	 * @return the estimator
+	 */
+	RTTEstimator getEstimator(){
+		return estimator;
+	}
+
+	/**
+	 * Number of messages in flight
+	 * @return the number of unacknowledged messages
+	 */
+	synchronized int inFlight(){
+		return inFlight.size();
+	}
+
+	/**
+	 * Get the lowest sequence number not acknowledged or given up
+	 * @return the base of the window
+	 */
+	synchronized int getBase(){
+		if(!inFlight.isEmpty())
+			return inFlight.values().iterator().next().seq;
+		if(!backlog.isEmpty())
+			return backlog.peek().seq;
+		return nextSeq;
+	}
+
+	/**
+	 * Take out every segment, in flight or waiting, so they can be given up
+	 * @return the segments
+	 */
+	synchronized List<Segment> clear(){
+		List<Segment> segments=new ArrayList<>(inFlight.values());
+		segments.addAll(backlog);
+		inFlight.clear();
+		backlog.clear();
+		return segments;
+	}
+
+	/**
+	 * Find the segments in flight covered by an acknowledgement
+	 * @param ackSeq all messages before this sequence number have been received
+	 * @param ackBits bit i set if message "ackSeq+1+i" has been received
+	 * @return the acknowledged segments
+	 */
+	synchronized List<Segment> acknowledged(int ackSeq, long ackBits){
+		List<Segment> acknowledged=new ArrayList<>();
+		for(Segment segment:inFlight.values()){
+			int distance=segment.seq-ackSeq;
+			if(distance<0 || (distance>0 && distance<=Long.SIZE && (ackBits & (1L<<(distance-1)))!=0))
+				acknowledged.add(segment);
+		}
+		return acknowledged;
+	}
+
+	/**
+	 * Free the slot of a segment once it is acknowledged or given up, and send the next waiting ones
+	 * @param segment the segment
+	 */
+	private void release(Segment segment){
+		synchronized(this){
+			if(inFlight.remove(segment.messageId)==null && !backlog.remove(segment))
+				return;
+		}
+		Segment next;
+		while((next=admit())!=null)
+			transmitter.accept(next);
+	}
+
+	/**
+	 * Move the first waiting segment into the window if its sequence number fits
+	 * @return the admitted segment, or null
+	 */
+	private synchronized Segment admit(){
+		Segment next=backlog.peek();
+		if(next==null || next.seq-getBase()>=size)
+			return null;
+		backlog.poll();
+		inFlight.put(next.messageId, next);
+		return next;
+	}
+
+	/**
+	 * One reliable message in flight
+	 */
+	static class Segment{
+		// segment state
+		static final int PENDING=0;
+		static final int ACKED=1;
+		static final int TIMEOUT=2;
+
+		private SendWindow window;
+		final Message message;
+		final int messageId;
+		final Endpoint receiver;
+		int seq;								// sequence number in the window
+		volatile byte[] data;					// serialized when first sent
+		private final boolean adaptive;			// timeout from the RTT estimator, with exponential backoff
+		private int ACKTimeout;					// current time to wait for ACK
+		private int resendNum;
+		private long giveUpTime;				// adaptive segment is given up after this time since first sent
+		private long sentTime=0;				// when first sent, in nanoseconds
+		private boolean resent=false;
+		private long RTT=-1;					// measured round trip time in nanoseconds, -1 if ambiguous or not acknowledged
+		private int state=PENDING;
+		private CompletableFuture<Boolean> completion=new CompletableFuture<>();
+		private volatile Timeout timer;			// pending resend
+
+		/**
+		 * Constructor of segment with fixed timeout
+		 * @param message the reliable message
+		 * @param receiver the receiver endpoint
+		 * @param resendNum how many times the message may be resent
+		 * @param ACKTimeout time to wait for ACK before resending
+		 */
+		Segment(Message message, Endpoint receiver, int resendNum, int ACKTimeout){
+			this(message,receiver,false,resendNum,ACKTimeout,0);
+		}
+
+		/**
+		 * Constructor of segment with adaptive timeout
+		 * The message is resent with backoff until acknowledged or given up
+		 * @param message the reliable message
+		 * @param receiver the receiver endpoint
+		 * @param giveUpTime time in milliseconds after which the message is given up
+		 */
+		Segment(Message message, Endpoint receiver, long giveUpTime){
+			this(message,receiver,true,Integer.MAX_VALUE,RTTEstimator.INITIAL_RTO,giveUpTime);
+		}
+
+		private Segment(Message message, Endpoint receiver, boolean adaptive, int resendNum, int ACKTimeout, long giveUpTime){
+			this.message=message;
+			this.messageId=message.getId();
+			this.receiver=receiver;
+			this.adaptive=adaptive;
+			this.resendNum=resendNum;
+			this.ACKTimeout=ACKTimeout;
+			this.giveUpTime=giveUpTime;
+		}
+
+		/**
+		 * Record the first sending, taking the timeout from the estimator if adaptive
+		 */
+		synchronized void sent(){
+			sentTime=System.nanoTime();
+			if(adaptive && window!=null)
+				ACKTimeout=window.estimator.getRTO();
+		}
+
+		/**
+		 * Get the time to wait for ACK before the next resend
+		 * @return the timeout in milliseconds
+		 */
+		synchronized int getACKTimeout(){
+			return ACKTimeout;
+		}
+
+		/**
+		 * Mark the segment acknowledged
+		 * @return true if the segment was still pending
+		 */
+		boolean acknowledge(){
+			long RTT;
+			synchronized(this){
+				RTT=System.nanoTime()-sentTime;
+			}
+			if(!complete(ACKED))
+				return false;
+			// resent messages are ambiguous samples
+			if(!resent){
+				synchronized(this){
+					this.RTT=RTT;
+				}
+				if(window!=null)
+					window.estimator.update(RTT);
+			}
+			return true;
+		}
+
+		/**
+		 * Get the round trip time measured by the acknowledgement
+		 * @return the time in nanoseconds, -1 if the message has been resent or is not acknowledged
+		 */
+		synchronized long getRTT(){
+			return RTT;
+		}
+
+		/**
+		 * Give the segment up without resending
+		 * @return true if the segment was still pending
+		 */
+		boolean abandon(){
+			return complete(TIMEOUT);
+		}
+
+		/**
+		 * Consume one resend, or give the segment up when none is left
+		 * @return true if the segment should be resent
+		 */
+		boolean retry(){
+			synchronized(this){
+				if(state!=PENDING)
+					return false;
+				boolean expired=adaptive && (System.nanoTime()-sentTime)/1000000>=giveUpTime;
+				if(resendNum>0 && !expired){
+					resendNum--;
+					resent=true;
+					if(adaptive)
+						ACKTimeout=RTTEstimator.backoff(ACKTimeout);
+					return true;
+				}
+			}
+			complete(TIMEOUT);
+			return false;
+		}
+
+		/**
+		 * Set the timeout of the pending resend
+		 * @param timer the timeout
+		 */
+		void setTimer(Timeout timer){
+			this.timer=timer;
+		}
+
+		/**
+		 * Cancel the pending resend
+		 */
+		void cancelTimer(){
+			Timeout timer=this.timer;
+			if(timer!=null)
+				timer.cancel();
+		}
+
+		/**
+		 * Completed with true once acknowledged, false once given up
+		 * @return the completion
+		 */
+		CompletableFuture<Boolean> completion(){
+			return completion;
+		}
+
+		private boolean complete(int state){
+			synchronized(this){
+				if(this.state!=PENDING)
+					return false;
+				this.state=state;
+			}
+			if(window!=null)
+				window.release(this);
+			completion.complete(state==ACKED);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import network.address.Endpoint;
+import network.protocol.Message;
+
+/**
+ * Numeric session ids standing for sender ids on the wire, negotiated with each endpoint
+ * A sender names itself along with its session id until the receiver confirms it, then sends the id alone
+ * A receiver not knowing a session id, after a restart for instance, asks the sender to name itself again
+ * Confirmations and such requests are piggybacked on the next message to the endpoint, reports included
+ * Senders behind a shared endpoint, such as a relay, would mix up their session ids, so they are never confirmed
+ * and always name themselves, as messages sent to a shared endpoint do
+ */
+class SessionTable {
+	private final Map<String,Integer> localIds=new ConcurrentHashMap<>();	// own session id of each sender id
+	private final AtomicInteger count=new AtomicInteger();
+	private final Map<Endpoint,Peer> peers=new ConcurrentHashMap<>();
+	private final Set<Endpoint> sharedEndpoints=ConcurrentHashMap.newKeySet();	// endpoints relaying several senders
+
+	/**
+	 * Negotiation state with one endpoint, guarded by itself
+	 */
+	private static class Peer{
+		final Map<Integer,String> names=new HashMap<>();	// sender ids of the session ids of the endpoint
+		final Set<Integer> confirmed=new HashSet<>();		// own session ids the endpoint knows
+		int confirm=-1;										// session id of the endpoint to confirm
+		int resync=-1;										// session id of the endpoint to ask for again
+	}
+
+	private int localId(String senderId){
+		return localIds.computeIfAbsent(senderId, key->count.getAndIncrement());
+	}
+
+	private Peer peer(Endpoint endpoint){
+		return peers.computeIfAbsent(endpoint, key->new Peer());
+	}
+
+	/**
+	 * Forget the negotiation with an endpoint, its senders name themselves again if they come back
+	 * @param endpoint the endpoint
+	 */
+	void remove(Endpoint endpoint){
+		peers.remove(endpoint);
+	}
+
+	/**
+	 * Mark the endpoint as relaying several senders, which always name themselves
+	 * @param endpoint the endpoint
+	 */
+	void share(Endpoint endpoint){
+		sharedEndpoints.add(endpoint);
+		Peer peer=peers.get(endpoint);
+		if(peer!=null){
+			synchronized(peer){
+				peer.names.clear();
+				peer.confirmed.clear();
+				peer.confirm=-1;
+			}
+		}
+	}
+
+	/**
+	 * Check whether the endpoint relays several senders
+	 * @param endpoint the endpoint
+	 * @return true if shared
+	 */
+	boolean isShared(Endpoint endpoint){
+		return !sharedEndpoints.isEmpty() && sharedEndpoints.contains(endpoint);
+	}
+
+	/**
+	 * Set the session id of an outgoing message, and piggyback the pending negotiation with its receiver
+	 * @param message the message
+	 * @param receiver the receiver endpoint
+	 */
+	void prepare(Message message, Endpoint receiver){
+		Peer peer=peer(receiver);
+		boolean isShared=isShared(receiver);
+		synchronized(peer){
+			if(message.getSenderId()!=null){
+				int sessionId=localId(message.getSenderId());
+				message.setSession(sessionId, isShared || !peer.confirmed.contains(sessionId));
+			}
+			if(peer.confirm>=0){
+				message.setConfirmedSession(peer.confirm);
+				peer.confirm=-1;
+			}
+			if(peer.resync>=0){
+				message.setResyncSession(peer.resync);
+				peer.resync=-1;
+			}
+		}
+	}
+
+	/**
+	 * Set the session id of a message sent to several endpoints, named unless all of them know the id
+	 * @param message the message
+	 * @param receivers the receiver endpoints
+	 */
+	void prepare(Message message, Iterable<Endpoint> receivers){
+		if(message.getSenderId()==null)
+			return;
+		int sessionId=localId(message.getSenderId());
+		boolean isNamed=false;
+		for(Endpoint receiver:receivers){
+			isNamed|=isShared(receiver);
+			Peer peer=peer(receiver);
+			synchronized(peer){
+				isNamed|=!peer.confirmed.contains(sessionId);
+			}
+		}
+		message.setSession(sessionId, isNamed);
+	}
+
+	/**
+	 * Learn from an incoming message, and resolve its sender id from its session id
+	 * @param message the message
+	 * @param sender the sender endpoint
+	 * @return false if the session id is unknown, the sender is then asked to name itself again
+	 */
+	boolean resolve(Message message, Endpoint sender){
+		int sessionId=message.getSessionId();
+		if(sessionId<0 && message.getConfirmedSession()<0 && message.getResyncSession()<0)
+			return true;
+		Peer peer=peer(sender);
+		synchronized(peer){
+			if(message.getConfirmedSession()>=0)
+				peer.confirmed.add(message.getConfirmedSession());
+			if(message.getResyncSession()>=0)
+				peer.confirmed.remove(message.getResyncSession());
+			if(sessionId<0)
+				return true;
+			if(message.getSenderId()!=null){
+				// confirmed again each time, in case the confirmation was lost
+				if(!isShared(sender)){
+					peer.names.put(sessionId, message.getSenderId());
+					peer.confirm=sessionId;
+				}
+				return true;
+			}
+			String senderId=peer.names.get(sessionId);
+			if(senderId==null){
+				peer.resync=sessionId;
+				return false;
+			}
+			message.setSenderId(senderId);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.util.Objects;
+
+import network.address.Endpoint;
+
+/**
+ * Where a stream of reliable messages comes from, the endpoint and, behind a relay, the sender id
+ * Senders behind a relay share its endpoint, each with its own sequence numbers
+ */
+final class Source {
+	final Endpoint endpoint;
+	final String senderId;			// null unless the endpoint relays several senders
+
+	Source(Endpoint endpoint, String senderId){
+		this.endpoint=endpoint;
+		this.senderId=senderId;
+	}
+
+	@Override
+	public int hashCode(){
+		return endpoint.hashCode()*31+Objects.hashCode(senderId);
+	}
+
+	@Override
+	public boolean equals(Object obj){
+		if(!(obj instanceof Source))
+			return false;
+		Source source=(Source)obj;
+		return source.endpoint.equals(endpoint) && Objects.equals(source.senderId, senderId);
+	}
+}
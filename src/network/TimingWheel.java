@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel, one thread expiring the timeouts of all in-flight messages
+ * Scheduling and cancelling a timeout costs O(1), the expiry precision is one tick
+ */
+public class TimingWheel implements Runnable{
+	private final long tickDuration;					// tick duration in nanoseconds
+	private final Bucket[] wheel;
+	private final int mask;
+
+	private final Queue<Timeout> scheduled=new ConcurrentLinkedQueue<>();	// timeouts to be put into buckets
+	private final Queue<Timeout> cancelled=new ConcurrentLinkedQueue<>();	// timeouts to be removed from buckets
+
+	private final Thread worker;
+	private volatile boolean isStopped=false;
+	private long startTime;
+	private long tick=0;
+
+	/**
+	 * Constructor
+	 * @param tickDuration the tick duration in milliseconds
+	 * @param ticksPerWheel number of buckets, rounded up to the power of two
+	 * @param name the worker thread name
+	 */
+	public TimingWheel(long tickDuration, int ticksPerWheel, String name){
+		this.tickDuration=TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickDuration));
+		int size=1;
+		while(size<ticksPerWheel)
+			size<<=1;
+		this.wheel=new Bucket[size];
+		for(int i=0;i<size;i++)
+			wheel[i]=new Bucket();
+		this.mask=size-1;
+
+		this.startTime=System.nanoTime();
+		this.worker=new Thread(this,name);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Schedule a task
+	 * The task is executed in the wheel thread, so it must not block
+	 * @param task the task
+	 * @param delay the delay in milliseconds
+	 * @return the timeout, which can be cancelled
+	 */
+	public Timeout schedule(Runnable task, long delay){
+		Timeout timeout=new Timeout(this,task,System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)));
+		if(!isStopped)
+			scheduled.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stop the wheel, pending timeouts are never executed
+	 */
+	public void stop(){
+		isStopped=true;
+		worker.interrupt();
+	}
+
+	@Override
+	public void run() {
+		while(!isStopped){
+			long deadline=startTime+(tick+1)*tickDuration;
+			long sleep=deadline-System.nanoTime();
+			if(sleep>0){
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					if(isStopped)
+						return;
+				}
+				continue;
+			}
+			removeCancelled();
+			transferScheduled();
+			wheel[(int)(tick & mask)].expire();
+			tick++;
+		}
+	}
+
+	private void removeCancelled(){
+		Timeout timeout;
+		while((timeout=cancelled.poll())!=null){
+			if(timeout.bucket!=null)
+				timeout.bucket.remove(timeout);
+		}
+	}
+
+	private void transferScheduled(){
+		Timeout timeout;
+		while((timeout=scheduled.poll())!=null){
+			if(timeout.state.get()!=Timeout.INIT)
+				continue;
+			long calculated=(timeout.deadline-startTime)/tickDuration;
+			timeout.remainingRounds=(calculated-tick)/wheel.length;
+			long ticks=Math.max(calculated, tick);	// never schedule into the past
+			wheel[(int)(ticks & mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * Handle of a scheduled task
+	 */
+	public static class Timeout{
+		private static final int INIT=0;
+		private static final int CANCELLED=1;
+		private static final int EXPIRED=2;
+
+		private final TimingWheel timer;
+		private final Runnable task;
+		private final long deadline;
+		private long remainingRounds;
+		private AtomicInteger state=new AtomicInteger(INIT);
+
+		// linked list of the bucket, only accessed by the wheel thread
+		private Bucket bucket;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(TimingWheel timer, Runnable task, long deadline){
+			this.timer=timer;
+			this.task=task;
+			this.deadline=deadline;
+		}
+
+		/**
+		 * Cancel the task if not executed yet
+		 * @return true if cancelled
+		 */
+		public boolean cancel(){
+			if(!state.compareAndSet(INIT, CANCELLED))
+				return false;
+			timer.cancelled.add(this);
+			return true;
+		}
+
+		/**
+		 * Check the timeout cancelled or not
+		 * @return true if cancelled
+		 */
+		public boolean isCancelled(){
+			return state.get()==CANCELLED;
+		}
+
+		/**
+		 * Check the timeout expired or not
+		 * @return true if the task has been executed
+		 */
+		public boolean isExpired(){
+			return state.get()==EXPIRED;
+		}
+
+		private void expire(){
+			if(!state.compareAndSet(INIT, EXPIRED))
+				return;
+			try{
+				task.run();
+			}
+			catch(Throwable t){
+				//t.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Doubly linked list of timeouts hashed to the same tick
+	 */
+	private static class Bucket{
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout){
+			timeout.bucket=this;
+			if(head==null)
+				head=tail=timeout;
+			else{
+				tail.next=timeout;
+				timeout.prev=tail;
+				tail=timeout;
+			}
+		}
+
+		void expire(){
+			Timeout timeout=head;
+			while(timeout!=null){
+				Timeout next=timeout.next;
+				if(timeout.isCancelled())
+					remove(timeout);
+				else if(timeout.remainingRounds<=0){
+					remove(timeout);
+					timeout.expire();
+				}
+				else
+					timeout.remainingRounds--;
+				timeout=next;
+			}
+		}
+
+		void remove(Timeout timeout){
+			if(timeout.bucket!=this)
+				return;
+			if(timeout.prev!=null)
+				timeout.prev.next=timeout.next;
+			else
+				head=timeout.next;
+			if(timeout.next!=null)
+				timeout.next.prev=timeout.prev;
+			else
+				tail=timeout.prev;
+			timeout.prev=null;
+			timeout.next=null;
+			timeout.bucket=null;
+		}
+	}
+}
@@ -0,0 +1,376 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import network.address.Endpoint;
+import network.metrics.Meter;
+import network.metrics.Metrics;
+import network.protocol.Event;
+
+/**
+ * Ordering outgoing datagrams by event before sending, on one sender thread
+ * Control events, AUDIO and TOUCH are sent first in this order (strict priority),
+ * VIDEO and custom events share the rest by weight (deficit round robin)
+ * Any event can be paced by a token bucket, spreading a burst of datagrams over time
+ * A paced queue holds about a second of its rate, beyond which its oldest messages not being sent are dropped whole,
+ * counted as "event.NAME.sendDropped"
+ */
+class TransmitScheduler implements Runnable {
+	private final static int QUANTUM=1500;				// bytes an event of weight 1 may send per round
+	private final static int MIN_BURST=3000;			// min bucket depth in bytes
+	private final static int BURST_TIME=5;				// bucket depth in milliseconds of the rate
+	private final static int MAX_QUEUE_TIME=1000;		// max delay of a paced queue in milliseconds, at its rate
+	private final static int MIN_QUEUE_SIZE=64*1024;	// min bytes a paced queue holds, a large message at least
+	private final static int[] STRICT_EVENTS={-1,Event.STUN,Event.TURN,Event.CONNECT,Event.AUDIO,Event.TOUCH};
+
+	private final ReentrantLock lock=new ReentrantLock();
+	private final Condition changed=lock.newCondition();
+	private final Map<Integer,EventQueue> queues=new HashMap<>();		// queue of each event
+	private final EventQueue[] strictQueues=new EventQueue[STRICT_EVENTS.length];
+	private final Queue<EventQueue> activeQueues=new ArrayDeque<>();	// round of fair queues with datagrams
+	private final Batcher.Writer writer;
+	private final Metrics metrics;			// where dropped messages are counted
+	private boolean isStopped=false;
+
+	/**
+	 * Constructor, starting the sender thread
+	 * @param writer who writes the datagrams
+	 * @param name the thread name
+	 * @param metrics the registry of the drop counts
+	 */
+	TransmitScheduler(Batcher.Writer writer, String name, Metrics metrics){
+		this.writer=writer;
+		this.metrics=metrics;
+		for(int i=0;i<STRICT_EVENTS.length;i++){
+			strictQueues[i]=new EventQueue(STRICT_EVENTS[i],true);
+			queues.put(STRICT_EVENTS[i], strictQueues[i]);
+		}
+		Thread thread=new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queue a message of one datagram
+	 * @param event the event of the message
+	 * @param data the datagram
+	 * @param receiver the receiver endpoint
+	 */
+	void submit(int event, byte[] data, Endpoint receiver){
+		submit(event,new byte[][]{data},receiver);
+	}
+
+	/**
+	 * Queue the datagrams of a message, which are kept or dropped together
+	 * @param event the event of the message
+	 * @param datagrams the datagrams, such as fragments
+	 * @param receiver the receiver endpoint
+	 */
+	void submit(int event, byte[][] datagrams, Endpoint receiver){
+		lock.lock();
+		try{
+			if(isStopped)
+				return;
+			EventQueue queue=getQueue(event);
+			if(queue.rate>0){
+				long size=0;
+				for(byte[] data:datagrams)
+					size+=data.length;
+				long maxSize=Math.max(MIN_QUEUE_SIZE, queue.rate*MAX_QUEUE_TIME/1000);
+				while(queue.size+size>maxSize && queue.dropOldest());
+			}
+			for(int i=0;i<datagrams.length;i++)
+				queue.add(new Datagram(datagrams[i],receiver,i==datagrams.length-1));
+			if(!queue.isStrict && !queue.isActive){
+				queue.isActive=true;
+				activeQueues.add(queue);
+			}
+			changed.signal();
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the share of an event not sent with strict priority
+	 * @param event the event
+	 * @param weight the weight, 1 by default
+	 */
+	void setWeight(int event, int weight){
+		lock.lock();
+		try{
+			getQueue(event).weight=Math.max(1, weight);
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the pacing rate of an event
+	 * @param event the event
+	 * @param rate the rate in bytes per second, 0 not to pace
+	 */
+	void setPacingRate(int event, long rate){
+		lock.lock();
+		try{
+			EventQueue queue=getQueue(event);
+			queue.rate=Math.max(0, rate);
+			queue.depth=Math.max(MIN_BURST, queue.rate*BURST_TIME/1000);
+			queue.tokens=Math.min(queue.tokens, queue.depth);
+			changed.signal();
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop the sender thread, dropping the queued datagrams
+	 */
+	void stop(){
+		lock.lock();
+		try{
+			isStopped=true;
+			changed.signal();
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void run() {
+		while(true){
+			Datagram datagram;
+			lock.lock();
+			try{
+				long wait;
+				while(true){
+					if(isStopped)
+						return;
+					long now=System.nanoTime();
+					datagram=next(now);
+					if(datagram!=null)
+						break;
+					wait=nextPacingTime(now);
+					if(wait<0)
+						changed.await();
+					else
+						changed.awaitNanos(wait);
+				}
+			}
+			catch(InterruptedException e){
+				return;
+			}
+			finally{
+				lock.unlock();
+			}
+
+			try{
+				writer.write(datagram.data, datagram.receiver);
+			}
+			catch(Exception e){
+				//e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Take the next datagram to be sent, with the lock held
+	 * @param now the current time in nanoseconds
+	 * @return the datagram, or null if none can be sent now
+	 */
+	private Datagram next(long now){
+		for(EventQueue queue:strictQueues){
+			if(!queue.datagrams.isEmpty() && queue.isAllowed(now))
+				return queue.poll();
+		}
+
+		// each fair queue in turn sends up to its deficit, skipped while paced
+		int skipped=0;
+		while(!activeQueues.isEmpty() && skipped<activeQueues.size()){
+			EventQueue queue=activeQueues.peek();
+			if(queue.datagrams.isEmpty()){
+				activeQueues.poll();
+				queue.isActive=false;
+				queue.deficit=0;
+				continue;
+			}
+			if(!queue.isAllowed(now)){
+				activeQueues.add(activeQueues.poll());
+				skipped++;
+				continue;
+			}
+			int size=queue.datagrams.peek().data.length;
+			if(queue.deficit>=size){
+				queue.deficit-=size;
+				return queue.poll();
+			}
+			queue.deficit+=QUANTUM*queue.weight;
+			activeQueues.add(activeQueues.poll());
+			skipped=0;
+		}
+		return null;
+	}
+
+	/**
+	 * Get the time until a paced queue may send again, with the lock held
+	 * @param now the current time in nanoseconds
+	 * @return the time in nanoseconds, -1 if no queue waits for pacing
+	 */
+	private long nextPacingTime(long now){
+		long wait=-1;
+		for(EventQueue queue:queues.values()){
+			if(queue.datagrams.isEmpty() || queue.rate==0)
+				continue;
+			long time=queue.waitTime(now);
+			if(wait<0 || time<wait)
+				wait=time;
+		}
+		return wait;
+	}
+
+	private EventQueue getQueue(int event){
+		EventQueue queue=queues.get(event);
+		if(queue==null){
+			queue=new EventQueue(event,false);
+			queues.put(event, queue);
+		}
+		return queue;
+	}
+
+	/**
+	 * Datagrams of one event, with the token bucket pacing them
+	 */
+	private class EventQueue{
+		final int event;
+		final boolean isStrict;
+		final Queue<Datagram> datagrams=new ArrayDeque<>();
+		long size=0;							// bytes queued
+		boolean isSending=false;				// the first queued datagrams are the rest of a message partly sent
+		Meter drops;							// messages dropped, created on the first drop
+		boolean isActive=false;					// in the round of fair queues
+		int weight=1;
+		long deficit=0;							// bytes it may send in this round
+
+		long rate=0;							// bytes per second, 0 not paced
+		long depth=MIN_BURST;					// max tokens
+		long tokens=MIN_BURST;					// bytes it may send now, negative after a large datagram
+		long updateTime=System.nanoTime();
+
+		EventQueue(int event, boolean isStrict){
+			this.event=event;
+			this.isStrict=isStrict;
+		}
+
+		void add(Datagram datagram){
+			datagrams.add(datagram);
+			size+=datagram.data.length;
+		}
+
+		/**
+		 * Drop the oldest message not being sent, so the bandwidth spent on a message partly sent is not wasted
+		 * @return false if there is no such message
+		 */
+		boolean dropOldest(){
+			Iterator<Datagram> iterator=datagrams.iterator();
+			boolean isSkipped=isSending;
+			boolean isDropped=false;
+			while(iterator.hasNext()){
+				Datagram datagram=iterator.next();
+				if(isSkipped){
+					isSkipped=!datagram.isLast;
+					continue;
+				}
+				iterator.remove();
+				size-=datagram.data.length;
+				isDropped=true;
+				if(datagram.isLast)
+					break;
+			}
+			if(!isDropped)
+				return false;
+			if(drops==null)
+				drops=metrics.meter("event."+Event.name(event)+".sendDropped");
+			drops.mark();
+			return true;
+		}
+
+		/**
+		 * Refill the bucket and check a datagram can be sent
+		 * @param now the current time in nanoseconds
+		 * @return true if not paced or tokens are left
+		 */
+		boolean isAllowed(long now){
+			if(rate==0)
+				return true;
+			long elapsed=now-updateTime;
+			if(elapsed>=TimeUnit.SECONDS.toNanos(1)){
+				tokens=depth;
+				updateTime=now;
+				return true;
+			}
+			long refill=elapsed*rate/TimeUnit.SECONDS.toNanos(1);
+			if(refill>0){
+				tokens=Math.min(depth, tokens+refill);
+				updateTime=now;
+			}
+			return tokens>0;
+		}
+
+		/**
+		 * Get the time until tokens are left
+		 * @param now the current time in nanoseconds
+		 * @return the time in nanoseconds
+		 */
+		long waitTime(long now){
+			isAllowed(now);
+			return tokens>0?0:Math.max(1, (1-tokens)*TimeUnit.SECONDS.toNanos(1)/rate);
+		}
+
+		Datagram poll(){
+			Datagram datagram=datagrams.poll();
+			size-=datagram.data.length;
+			isSending=!datagram.isLast;
+			if(rate>0)
+				tokens-=datagram.data.length;
+			return datagram;
+		}
+	}
+
+	private static class Datagram{
+		final byte[] data;
+		final Endpoint receiver;
+		final boolean isLast;					// the last datagram of its message
+
+		Datagram(byte[] data, Endpoint receiver, boolean isLast){
+			this.data=data;
+			this.receiver=receiver;
+			this.isLast=isLast;
+		}
+	}
+}
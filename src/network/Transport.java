@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import network.address.Endpoint;
+
+/**
+ * Datagram transport under RUDPImpl
+ * RUDPImpl only sends and receives whole datagrams, so the reliability, batching and pacing logic
+ * runs the same over a UDP socket, a non-blocking channel or the in-memory network of MemoryNetwork
+ */
+public interface Transport {
+	int MAX_PACKET_SIZE=32000;		// max datagram size, received datagrams are truncated beyond it
+
+	/**
+	 * Receiver of datagrams
+	 */
+	@FunctionalInterface
+	interface Receiver{
+		/**
+		 * Take a received datagram, the buffer may be reused once returned
+		 * @param data the datagram, from its position to its limit
+		 * @param sender the sender endpoint
+		 */
+		void receive(ByteBuffer data, Endpoint sender);
+	}
+
+	/**
+	 * Deliver received datagrams to the receiver until the transport is closed
+	 * @param receiver the receiver
+	 * @throws IOException if the transport cannot receive
+	 */
+	void listen(Receiver receiver) throws IOException;
+
+	/**
+	 * Send a datagram
+	 * @param data the datagram, from its position to its limit
+	 * @param receiver the receiver endpoint
+	 * @throws IOException if the transport fails
+	 */
+	void send(ByteBuffer data, Endpoint receiver) throws IOException;
+
+	/**
+	 * Check whether datagrams are best handed over in direct buffers, saving a copy
+	 * @return true if direct
+	 */
+	boolean isDirect();
+
+	/**
+	 * Open another transport of the same kind
+	 * @param port the port, 0 for any free port
+	 * @return the transport
+	 * @throws IOException if the port cannot be bound
+	 */
+	Transport bind(int port) throws IOException;
+
+	/**
+	 * Get the local port, useful when bound to any free port
+	 * @return the port
+	 */
+	int getLocalPort();
+
+	/**
+	 * Set the size of the receive and send buffers
+	 * @param bufferSize the buffer size in bytes
+	 */
+	void setBufferSize(int bufferSize);
+
+	/**
+	 * Close the transport, ending the listening
+	 */
+	void close();
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import network.address.Endpoint;
+import network.metrics.Histogram;
+import network.metrics.Meter;
+import network.metrics.Metrics;
+import network.protocol.Event;
+
+/**
+ * Metrics of a RUDP instance, kept in its registry
+ * Each remote endpoint has "endpoint.HOST:PORT." followed by packetsIn, bytesIn, packetsOut, bytesOut,
+ * retransmissions, ACKTimeouts, recovered, RTT and replyLatency, both in microseconds
+ * Each event has "event.NAME.messagesIn" and "event.NAME.messagesOut", whose rates are the frame rates of media events
+ */
+class TransportMetrics {
+	private final Metrics metrics;
+	private final Map<Endpoint,Path> paths=new ConcurrentHashMap<>();	// metrics of each remote endpoint
+	private volatile Meter[] messagesIn=new Meter[0];				// messages received of each event, indexed by event
+	private volatile Meter[] messagesOut=new Meter[0];				// messages sent of each event, indexed by event
+
+	/**
+	 * Constructor
+	 * @param metrics the registry
+	 */
+	TransportMetrics(Metrics metrics){
+		this.metrics=metrics;
+	}
+
+	/**
+	 * Get the metrics of the path to an endpoint
+	 * @param endpoint the remote endpoint
+	 * @return the metrics
+	 */
+	Path path(Endpoint endpoint){
+		Path path=paths.get(endpoint);
+		return path!=null?path:paths.computeIfAbsent(endpoint, key->new Path(key));
+	}
+
+	/**
+	 * Record a message sent, before fragmentation or batching
+	 * @param event the message event, control messages have none
+	 */
+	void messageSent(int event){
+		if(event>=0)
+			meter(event,false).mark();
+	}
+
+	/**
+	 * Record a message dispatched to its handler, after reassembly
+	 * @param event the message event
+	 */
+	void messageReceived(int event){
+		if(event>=0)
+			meter(event,true).mark();
+	}
+
+	/**
+	 * Remove the metrics of an endpoint
+	 * @param endpoint the remote endpoint
+	 */
+	void remove(Endpoint endpoint){
+		if(paths.remove(endpoint)!=null)
+			metrics.remove(prefix(endpoint));
+	}
+
+	/**
+	 * Get the endpoints no datagram has been sent to or received from for a while
+	 * @param idleTime the time in nanoseconds
+	 * @return the endpoints
+	 */
+	List<Endpoint> idle(long idleTime){
+		long now=System.nanoTime();
+		List<Endpoint> endpoints=new ArrayList<>();
+		paths.forEach((endpoint,path)->{
+			if(now-path.lastActive>idleTime)
+				endpoints.add(endpoint);
+		});
+		return endpoints;
+	}
+
+	private static String prefix(Endpoint endpoint){
+		return "endpoint."+endpoint.getAddress().getHostAddress()+":"+endpoint.getPort()+".";
+	}
+
+	private Meter meter(int event, boolean isIncoming){
+		Meter[] meters=isIncoming?messagesIn:messagesOut;
+		if(event<meters.length && meters[event]!=null)
+			return meters[event];
+		return createMeter(event,isIncoming);
+	}
+
+	private synchronized Meter createMeter(int event, boolean isIncoming){
+		Meter[] meters=isIncoming?messagesIn:messagesOut;
+		if(event>=meters.length)
+			meters=Arrays.copyOf(meters, event+1);
+		if(meters[event]==null)
+			meters[event]=metrics.meter("event."+Event.name(event)+(isIncoming?".messagesIn":".messagesOut"));
+		if(isIncoming)
+			messagesIn=meters;
+		else
+			messagesOut=meters;
+		return meters[event];
+	}
+
+	/**
+	 * Metrics of the path to one endpoint
+	 */
+	class Path{
+		private final Meter packetsIn;
+		private final Meter bytesIn;
+		private final Meter packetsOut;
+		private final Meter bytesOut;
+		private final Meter retransmissions;
+		private final Meter ACKTimeouts;
+		private final Meter recoveries;			// datagrams rebuilt by forward error correction
+		private final Histogram RTT;				// round trip time of messages acknowledged without resending
+		private final Histogram replyLatency;		// time from sending a request to its reply
+		private volatile long lastActive=System.nanoTime();	// when a datagram was last sent or received
+
+		private Path(Endpoint endpoint){
+			String prefix=prefix(endpoint);
+			packetsIn=metrics.meter(prefix+"packetsIn");
+			bytesIn=metrics.meter(prefix+"bytesIn");
+			packetsOut=metrics.meter(prefix+"packetsOut");
+			bytesOut=metrics.meter(prefix+"bytesOut");
+			retransmissions=metrics.meter(prefix+"retransmissions");
+			ACKTimeouts=metrics.meter(prefix+"ACKTimeouts");
+			recoveries=metrics.meter(prefix+"recovered");
+			RTT=metrics.histogram(prefix+"RTT");
+			replyLatency=metrics.histogram(prefix+"replyLatency");
+		}
+
+		void received(int size){
+			lastActive=System.nanoTime();
+			packetsIn.mark();
+			bytesIn.mark(size);
+		}
+
+		void sent(int size){
+			lastActive=System.nanoTime();
+			packetsOut.mark();
+			bytesOut.mark(size);
+		}
+
+		void retransmitted(){
+			retransmissions.mark();
+		}
+
+		void timedOut(){
+			ACKTimeouts.mark();
+		}
+
+		void recovered(){
+			recoveries.mark();
+		}
+
+		/**
+		 * Record an acknowledgement
+		 * @param RTT the round trip time in nanoseconds, negative if unknown
+		 */
+		void acknowledged(long RTT){
+			if(RTT>=0)
+				this.RTT.record(RTT/1000);
+		}
+
+		void replied(long latency){
+			replyLatency.record(latency/1000);
+		}
+	}
+}
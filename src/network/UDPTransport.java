@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+import network.address.Endpoint;
+
+/**
+ * Transport over a blocking UDP socket, received on the listening thread
+ */
+public class UDPTransport implements Transport {
+	private DatagramSocket socket;		// UDP socket
+
+	/**
+	 * Constructor
+	 * @param port the port, 0 for any free port
+	 * @throws SocketException if the port cannot be bound
+	 */
+	public UDPTransport(int port) throws SocketException{
+		this.socket=new DatagramSocket(port);
+	}
+
+	@Override
+	public void listen(Receiver receiver) throws IOException{
+		byte[] receivedData = new byte[MAX_PACKET_SIZE];
+		DatagramPacket receivedPacket = new DatagramPacket(receivedData, receivedData.length);
+		while(!socket.isClosed()){
+			receivedPacket.setLength(receivedData.length);
+			try {
+				socket.receive(receivedPacket);
+			}
+			catch (IOException e) {
+				if(socket.isClosed())
+					return;
+				continue;
+			}
+			try{
+				receiver.receive(ByteBuffer.wrap(receivedData, 0, receivedPacket.getLength()),
+						new Endpoint(receivedPacket.getAddress(),receivedPacket.getPort()));
+			}
+			catch(Exception e){
+				//e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public void send(ByteBuffer data, Endpoint receiver) throws IOException{
+		if(data.hasArray()){
+			socket.send(new DatagramPacket(data.array(), data.arrayOffset()+data.position(), data.remaining(), receiver.getAddress(), receiver.getPort()));
+			return;
+		}
+		byte[] copy=new byte[data.remaining()];
+		data.duplicate().get(copy);
+		socket.send(new DatagramPacket(copy, copy.length, receiver.getAddress(), receiver.getPort()));
+	}
+
+	@Override
+	public boolean isDirect(){
+		return false;
+	}
+
+	@Override
+	public Transport bind(int port) throws IOException{
+		return new UDPTransport(port);
+	}
+
+	@Override
+	public int getLocalPort(){
+		return socket.getLocalPort();
+	}
+
+	@Override
+	public void setBufferSize(int bufferSize){
+		try {
+			socket.setReceiveBufferSize(bufferSize);
+			socket.setSendBufferSize(bufferSize);
+		} catch (SocketException e) {
+			//e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void close(){
+		socket.close();
+	}
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network.assist;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of byte arrays, grouped by power-of-two sizes
+ */
+public class BufferPool {
+	private final static int MIN_SHIFT=10;			// smallest array of 1 KB
+	private final static int MAX_SHIFT=20;			// largest pooled array of 1 MB
+
+	private final int maxPooled;					// max idle arrays of each size
+	@SuppressWarnings({"unchecked","rawtypes"})
+	private final Queue<byte[]>[] pools=new Queue[MAX_SHIFT-MIN_SHIFT+1];
+	private final AtomicInteger[] counts=new AtomicInteger[MAX_SHIFT-MIN_SHIFT+1];
+
+	/**
+	 * Constructor
+	 * @param maxPooled max idle arrays kept for each size
+	 */
+	public BufferPool(int maxPooled){
+		this.maxPooled=maxPooled;
+		for(int i=0;i<pools.length;i++){
+			pools[i]=new ConcurrentLinkedQueue<>();
+			counts[i]=new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Take an array of at least the size, its content is undefined
+	 * @param size the min size
+	 * @return the array
+	 */
+	public byte[] acquire(int size){
+		int index=indexOf(size);
+		if(index<0)
+			return new byte[size];
+		byte[] buffer=pools[index].poll();
+		if(buffer==null)
+			return new byte[1<<(index+MIN_SHIFT)];
+		counts[index].decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Give back an array taken from the pool
+	 * @param buffer the array
+	 */
+	public void release(byte[] buffer){
+		int index=indexOf(buffer.length);
+		if(index<0 || buffer.length!=1<<(index+MIN_SHIFT))
+			return;
+		if(counts[index].incrementAndGet()>maxPooled){
+			counts[index].decrementAndGet();
+			return;
+		}
+		pools[index].offer(buffer);
+	}
+
+	private int indexOf(int size){
+		int shift=Math.max(MIN_SHIFT, 32-Integer.numberOfLeadingZeros(Math.max(1, size)-1));
+		return shift>MAX_SHIFT?-1:shift-MIN_SHIFT;
+	}
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network.assist;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct byte buffers of one capacity
+ * Direct buffers are expensive to allocate and are not freed until collected, so they are reused
+ */
+public class ByteBufferPool {
+	private final int capacity;						// capacity of each buffer
+	private final int maxPooled;					// max idle buffers
+	private final Queue<ByteBuffer> pool=new ConcurrentLinkedQueue<>();
+	private final AtomicInteger count=new AtomicInteger();
+
+	/**
+	 * Constructor
+	 * @param capacity capacity of each buffer
+	 * @param maxPooled max idle buffers kept
+	 */
+	public ByteBufferPool(int capacity, int maxPooled){
+		this.capacity=capacity;
+		this.maxPooled=maxPooled;
+	}
+
+	/**
+	 * Take a cleared buffer
+	 * @return the buffer
+	 */
+	public ByteBuffer acquire(){
+		ByteBuffer buffer=pool.poll();
+		if(buffer==null)
+			return ByteBuffer.allocateDirect(capacity);
+		count.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Give back a buffer taken from the pool
+	 * @param buffer the buffer
+	 */
+	public void release(ByteBuffer buffer){
+		if(buffer.capacity()!=capacity || !buffer.isDirect())
+			return;
+		if(count.incrementAndGet()>maxPooled){
+			count.decrementAndGet();
+			return;
+		}
+		pool.offer(buffer);
+	}
+
+	/**
+	 * Get the capacity of each buffer
+	 * @return the capacity
+	 */
+	public int getCapacity(){
+		return capacity;
+	}
+}
@@ -2,10 +2,16 @@ package network.assist;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
 import network.address.Endpoint;
@@ -13,61 +19,320 @@ import network.address.NetworkInfo;
 import network.protocol.Message;
 import network.protocol.Payload;
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
+import com.esotericsoftware.kryo.io.ByteBufferOutput;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 
+/**
+ * Kryo serialization of messages, payloads and addresses
+ * Kryo instances are not thread safe, so each call borrows a context from a pool, with its own reusable input and output buffers
+ * The pool is shared by all threads and filled in advance, so short-lived and virtual threads do not build a Kryo each
+ * Messages are encoded in their own binary format instead, Kryo only serializes the payload of typed messages
+ */
 public class Serializer {
 	
 	private static final boolean compress=false;
 	
-    private static final ThreadLocal<Kryo> kryoThreadLocal = new ThreadLocal<Kryo>() { 
-    	@Override
-    	protected Kryo initialValue() {
-    		Kryo kryo = new Kryo();
-    		kryo.setReferences(false);
-    		kryo.setRegistrationRequired(true);
-    		
-    		//kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());  
-    		//kryo.setInstantiatorStrategy(new Kryo.DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
-    		
-    		kryo.register(Message.class);
-    		kryo.register(Payload.class);
-    		kryo.register(Endpoint.class);
-    		kryo.register(NetworkInfo.class);
-    		kryo.register(NetworkInfo[].class);
-    		kryo.register(ArrayList.class);
-    		kryo.register(Collection.class);
-    		kryo.register(HashSet.class);
-    		kryo.register(HashMap.class);
-            kryo.register(byte[].class);
-            kryo.register(String[].class);
-    		return kryo;
-    	}
-    };
-    
-    public static byte[] write(Object object){ 
-        Kryo kryo = kryoThreadLocal.get(); 	
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-
-        Output output=new Output(byteArrayOutputStream);
-        if(compress)
-            output = new Output(new DeflaterOutputStream(byteArrayOutputStream));
-
-        kryo.writeObject(output, object);
-        output.flush();
-        output.close();
-
-        return byteArrayOutputStream.toByteArray();
-     }
-
-     public static Object read(byte[] data, Class<?> type){       	              	 
-         Kryo kryo = kryoThreadLocal.get();        
-         ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(data);
-         
-         Input input=new Input(byteArrayInputStream);
-         if(compress)
-        	 input = new Input(new InflaterInputStream(byteArrayInputStream));
-
-         return kryo.readObject(input,type);
-     }
+	private static final int INITIAL_SIZE=1024;				// initial size of the output buffer of a context
+	private static final int MAX_RETAINED_SIZE=1<<20;		// larger output buffers are dropped once used
+	private static final int MAX_POOLED=64;					// max idle contexts
+	private static final byte[] EMPTY=new byte[0];			// set on buffers given back, so callers' arrays are not retained
+	private static final ByteBuffer EMPTY_BUFFER=ByteBuffer.allocate(0);	// likewise for callers' byte buffers
+	
+	private static final Queue<Context> pool=new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger count=new AtomicInteger();
+	
+	static{
+		// pre-warmed, one context for each processor
+		int num=Math.min(MAX_POOLED, Runtime.getRuntime().availableProcessors());
+		for(int i=0;i<num;i++)
+			release(new Context());
+	}
+	
+	/**
+	 * Kryo instance with the buffers it reads and writes through
+	 */
+	private static class Context{
+		final Kryo kryo=newKryo();
+		Output output=new Output(INITIAL_SIZE,-1);			// growing, for writes into new arrays
+		final Output arrayOutput=new Output(EMPTY);			// bound to the caller's array
+		final Input input=new Input(EMPTY);
+		final ByteBufferInput bufferInput=new ByteBufferInput();
+		final ByteBufferOutput bufferOutput=new ByteBufferOutput();
+		ByteBuffer messageBuffer=ByteBuffer.allocate(INITIAL_SIZE);	// growing, for typed messages into new arrays
+	}
+	
+	private static Kryo newKryo(){
+		Kryo kryo = new Kryo();
+		kryo.setReferences(false);
+		kryo.setRegistrationRequired(true);
+		
+		//kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());  
+		//kryo.setInstantiatorStrategy(new Kryo.DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
+		
+		kryo.register(Payload.class);
+		kryo.register(Endpoint.class);
+		kryo.register(NetworkInfo.class);
+		kryo.register(NetworkInfo[].class);
+		kryo.register(ArrayList.class);
+		kryo.register(Collection.class);
+		kryo.register(HashSet.class);
+		kryo.register(HashMap.class);
+		kryo.register(byte[].class);
+		kryo.register(String[].class);
+		return kryo;
+	}
+	
+	private static Context acquire(){
+		Context context=pool.poll();
+		if(context==null)
+			return new Context();
+		count.decrementAndGet();
+		return context;
+	}
+	
+	private static void release(Context context){
+		if(count.incrementAndGet()>MAX_POOLED){
+			count.decrementAndGet();
+			return;
+		}
+		pool.offer(context);
+	}
+	
+	/**
+	 * Serialize the object into a new array
+	 * @param object the object
+	 * @return the serialized bytes
+	 */
+	public static byte[] write(Object object){ 
+		if(object instanceof Message){
+			Message message=(Message)object;
+			int size=message.getEncodedSize();
+			if(size<0)
+				return writeTyped(message);
+			byte[] data=new byte[size];
+			message.encode(ByteBuffer.wrap(data));
+			return data;
+		}
+		
+		Context context=acquire();
+		try{
+			if(compress){
+				ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+				Output output = new Output(new DeflaterOutputStream(byteArrayOutputStream));
+				context.kryo.writeObject(output, object);
+				output.close();
+				return byteArrayOutputStream.toByteArray();
+			}
+			
+			context.output.clear();
+			context.kryo.writeObject(context.output, object);
+			return context.output.toBytes();
+		}
+		finally{
+			if(context.output.getBuffer().length>MAX_RETAINED_SIZE)
+				context.output=new Output(INITIAL_SIZE,-1);
+			release(context);
+		}
+	}
+	
+	/**
+	 * Deserialize an object
+	 * @param data the serialized bytes
+	 * @param type the object class
+	 * @return the object
+	 */
+	public static Object read(byte[] data, Class<?> type){
+		if(compress && type!=Message.class){
+			Context context=acquire();
+			try{
+				return context.kryo.readObject(new Input(new InflaterInputStream(new ByteArrayInputStream(data))), type);
+			}
+			finally{
+				release(context);
+			}
+		}
+		return read(data, 0, data.length, type);
+	}
+	
+	/**
+	 * Serialize the object into an array, without allocating the serialized bytes
+	 * A message is encoded through a ByteBuffer view of the array, its only allocation
+	 * @param object the object
+	 * @param buffer the array
+	 * @param offset where the object starts in the array
+	 * @return the number of bytes written, or -1 if the object does not fit in the array
+	 */
+	public static int write(Object object, byte[] buffer, int offset){
+		if(object instanceof Message){
+			Message message=(Message)object;
+			int size=message.getEncodedSize();
+			if(offset+size>buffer.length)
+				return -1;
+			ByteBuffer target=ByteBuffer.wrap(buffer, offset, size<0?buffer.length-offset:size);
+			try{
+				message.encode(target);
+			}
+			catch(BufferOverflowException e){
+				return -1;
+			}
+			return target.position()-offset;
+		}
+		
+		Context context=acquire();
+		Output output=context.arrayOutput;
+		try{
+			output.setBuffer(buffer, buffer.length);
+			output.setPosition(offset);
+			context.kryo.writeObject(output, object);
+			return output.position()-offset;
+		}
+		catch(KryoException e){
+			return -1;
+		}
+		finally{
+			output.setBuffer(EMPTY, 0);
+			release(context);
+		}
+	}
+	
+	/**
+	 * Deserialize an object from a range of an array
+	 * @param data the array
+	 * @param offset where the object starts
+	 * @param length the number of bytes of the object
+	 * @param type the object class
+	 * @return the object
+	 */
+	public static Object read(byte[] data, int offset, int length, Class<?> type){
+		if(type==Message.class)
+			return Message.decode(ByteBuffer.wrap(data, offset, length));
+		
+		Context context=acquire();
+		Input input=context.input;
+		try{
+			input.setBuffer(data, offset, length);
+			return context.kryo.readObject(input, type);
+		}
+		finally{
+			input.setBuffer(EMPTY);
+			release(context);
+		}
+	}
+	
+	/**
+	 * Write the object into the buffer, from its start
+	 * @param object the object
+	 * @param buffer the buffer, flipped for reading once written
+	 * @return false if the object does not fit in the buffer
+	 */
+	public static boolean write(Object object, ByteBuffer buffer){
+		buffer.clear();
+		if(object instanceof Message){
+			Message message=(Message)object;
+			if(message.getEncodedSize()>buffer.remaining())
+				return false;
+			try{
+				message.encode(buffer);
+			}
+			catch(BufferOverflowException e){
+				return false;
+			}
+			buffer.flip();
+			return true;
+		}
+		
+		Context context=acquire();
+		ByteBufferOutput output=context.bufferOutput;
+		output.setBuffer(buffer, buffer.capacity());
+		try{
+			context.kryo.writeObject(output, object);
+			buffer.position(0);
+			buffer.limit(output.position());
+			return true;
+		}
+		catch(KryoException e){
+			return false;
+		}
+		finally{
+			output.setBuffer(EMPTY_BUFFER, 0);
+			release(context);
+		}
+	}
+	
+	/**
+	 * Read an object from the remaining bytes of the buffer
+	 * @param buffer the buffer
+	 * @param type the object class
+	 * @return the object
+	 */
+	public static Object read(ByteBuffer buffer, Class<?> type){
+		if(type==Message.class)
+			return Message.decode(buffer);
+		
+		Context context=acquire();
+		try{
+			context.bufferInput.setBuffer(buffer);
+			return context.kryo.readObject(context.bufferInput,type);
+		}
+		finally{
+			context.bufferInput.setBuffer(EMPTY_BUFFER);
+			release(context);
+		}
+	}
+	
+	/**
+	 * Serialize the object at the position of the buffer, which is advanced past it
+	 * @param object the object
+	 * @param buffer the buffer
+	 * @throws BufferOverflowException if the object does not fit in the remaining bytes
+	 */
+	public static void append(Object object, ByteBuffer buffer){
+		ByteBuffer target=buffer.slice();
+		Context context=acquire();
+		ByteBufferOutput output=context.bufferOutput;
+		try{
+			output.setBuffer(target, target.capacity());
+			context.kryo.writeObject(output, object);
+			buffer.position(buffer.position()+output.position());
+		}
+		catch(KryoException e){
+			if(e.getMessage()!=null && e.getMessage().startsWith("Buffer overflow"))
+				throw new BufferOverflowException();
+			throw e;
+		}
+		finally{
+			output.setBuffer(EMPTY_BUFFER, 0);
+			release(context);
+		}
+	}
+	
+	/**
+	 * Serialize a typed message into a new array, its content written in place behind the header
+	 * @param message the message
+	 * @return the serialized bytes
+	 */
+	private static byte[] writeTyped(Message message){
+		Context context=acquire();
+		try{
+			while(true){
+				ByteBuffer buffer=context.messageBuffer;
+				buffer.clear();
+				try{
+					message.encode(buffer);
+					return Arrays.copyOf(buffer.array(), buffer.position());
+				}
+				catch(BufferOverflowException e){
+					context.messageBuffer=ByteBuffer.allocate(buffer.capacity()*2);
+				}
+			}
+		}
+		finally{
+			if(context.messageBuffer.capacity()>MAX_RETAINED_SIZE)
+				context.messageBuffer=ByteBuffer.allocate(INITIAL_SIZE);
+			release(context);
+		}
+	}
 }
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network.assist;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Threads running blocking work, such as handlers, reply handlers and media loops
+ * In virtual mode each task gets its own virtual thread, so blocking reliable sends cost no platform thread
+ * and nested sends cannot exhaust a pool; otherwise platform threads are pooled as before
+ * Virtual threads need Java 21, they are reached by reflection so the code still builds for Java 8
+ * The mode is read when pools are created, so it is set before creating RUDPImpl or controllers,
+ * or with the system property "mctf.virtualThreads"
+ */
+public class Threads {
+	private static volatile boolean virtual=Boolean.getBoolean("mctf.virtualThreads");
+
+	private static final Method ofVirtual;		// Thread.ofVirtual(), null if not supported
+	private static final Method name;			// Thread.Builder.name(String,long)
+	private static final Method factory;		// Thread.Builder.factory()
+	private static final Method newThreadPerTaskExecutor;	// Executors.newThreadPerTaskExecutor(ThreadFactory)
+
+	static{
+		Method[] methods=new Method[4];
+		try{
+			Class<?> builder=Class.forName("java.lang.Thread$Builder");
+			methods[0]=Thread.class.getMethod("ofVirtual");
+			methods[1]=builder.getMethod("name", String.class, long.class);
+			methods[2]=builder.getMethod("factory");
+			methods[3]=Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+		}
+		catch(Exception e){
+			methods=new Method[4];
+		}
+		ofVirtual=methods[0];
+		name=methods[1];
+		factory=methods[2];
+		newThreadPerTaskExecutor=methods[3];
+	}
+
+	/**
+	 * Check whether the runtime has virtual threads
+	 * @return true from Java 21
+	 */
+	public static boolean isVirtualSupported(){
+		return ofVirtual!=null;
+	}
+
+	/**
+	 * Select the execution mode of pools and threads created afterwards
+	 * @param virtual true to run blocking work on virtual threads, ignored if not supported
+	 */
+	public static void setVirtual(boolean virtual){
+		Threads.virtual=virtual;
+	}
+
+	/**
+	 * Check the execution mode
+	 * @return true if blocking work runs on virtual threads
+	 */
+	public static boolean isVirtual(){
+		return virtual && isVirtualSupported();
+	}
+
+	/**
+	 * Create a pool for blocking tasks
+	 * @param size number of platform threads, 0 for a cached pool; unbounded in virtual mode
+	 * @param name thread name prefix
+	 * @return the pool
+	 */
+	public static ExecutorService newPool(int size, String name){
+		ThreadFactory virtualFactory=virtualFactory(name);
+		if(virtualFactory!=null){
+			try{
+				return (ExecutorService)newThreadPerTaskExecutor.invoke(null, virtualFactory);
+			}
+			catch(Exception e){
+				//e.printStackTrace();
+			}
+		}
+		return size>0?Executors.newFixedThreadPool(size):Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * Create a pool for delayed and periodic tasks
+	 * In virtual mode its worker threads are virtual ones
+	 * @param size number of threads
+	 * @param name thread name prefix
+	 * @return the pool
+	 */
+	public static ScheduledExecutorService newScheduledPool(int size, String name){
+		ThreadFactory virtualFactory=virtualFactory(name);
+		if(virtualFactory!=null)
+			return Executors.newScheduledThreadPool(size, virtualFactory);
+		return Executors.newScheduledThreadPool(size);
+	}
+
+	/**
+	 * Start a thread running a task
+	 * @param task the task
+	 * @param name the thread name
+	 * @return the started thread, virtual in virtual mode
+	 */
+	public static Thread start(Runnable task, String name){
+		ThreadFactory virtualFactory=virtualFactory(name);
+		Thread thread=virtualFactory!=null?virtualFactory.newThread(task):new Thread(task);
+		thread.setName(name);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Create a factory of virtual threads named "name-0", "name-1" and so on
+	 * @param name thread name prefix
+	 * @return the factory, or null if not in virtual mode
+	 */
+	private static ThreadFactory virtualFactory(String name){
+		if(!isVirtual())
+			return null;
+		try{
+			Object builder=ofVirtual.invoke(null);
+			builder=Threads.name.invoke(builder, name+"-", 0L);
+			return (ThreadFactory)factory.invoke(builder);
+		}
+		catch(Exception e){
+			return null;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of measured values, such as latencies in microseconds
+ * Values are counted in buckets doubling in width, so recording takes no lock and no allocation
+ * and percentiles are known within a factor of two
+ */
+public class Histogram {
+	private final static int BUCKETS=64;
+
+	private final LongAdder[] buckets=new LongAdder[BUCKETS];	// bucket i counts values below 2^i, and not below 2^(i-1)
+	private final LongAdder count=new LongAdder();
+	private final LongAdder sum=new LongAdder();
+	private final LongAccumulator max=new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Constructor
+	 */
+	public Histogram(){
+		for(int i=0;i<BUCKETS;i++)
+			buckets[i]=new LongAdder();
+	}
+
+	/**
+	 * Record a value
+	 * @param value the value, negative ones are counted as 0
+	 */
+	public void record(long value){
+		value=Math.max(0, value);
+		buckets[Long.SIZE-Long.numberOfLeadingZeros(value)].increment();
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Get the number of recorded values
+	 * @return the count
+	 */
+	public long getCount(){
+		return count.sum();
+	}
+
+	/**
+	 * Get the mean of recorded values
+	 * @return the mean, 0 if none
+	 */
+	public long getMean(){
+		long count=this.count.sum();
+		return count>0?sum.sum()/count:0;
+	}
+
+	/**
+	 * Get the largest recorded value
+	 * @return the max, 0 if none
+	 */
+	public long getMax(){
+		return max.get();
+	}
+
+	/**
+	 * Estimate a percentile, as the upper bound of the bucket holding it
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the value, 0 if none
+	 */
+	public long getPercentile(double percentile){
+		long[] counts=new long[BUCKETS];
+		long total=0;
+		for(int i=0;i<BUCKETS;i++)
+			total+=counts[i]=buckets[i].sum();
+		if(total==0)
+			return 0;
+		long rank=(long)Math.ceil(total*percentile/100);
+		long seen=0;
+		for(int i=0;i<BUCKETS;i++){
+			seen+=counts[i];
+			if(seen>=rank && counts[i]>0)
+				return Math.min(getMax(), i==0?0:(1L<<i)-1);
+		}
+		return getMax();
+	}
+}
@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counter of occurrences, such as packets or bytes, with their recent rate
+ * The count is striped over cells, so threads counting at once hardly contend
+ */
+public class Meter {
+	private final static long RATE_INTERVAL=1000000000L;	// shortest span of a rate measurement, in nanoseconds
+
+	private final LongAdder count=new LongAdder();
+	private long lastCount=0;				// count when the rate was last measured
+	private long lastTime=System.nanoTime();	// when the rate was last measured
+	private long rate=0;					// last measured rate, per second
+
+	/**
+	 * Count one occurrence
+	 */
+	public void mark(){
+		count.increment();
+	}
+
+	/**
+	 * Count occurrences
+	 * @param n the number of occurrences, such as bytes
+	 */
+	public void mark(long n){
+		count.add(n);
+	}
+
+	/**
+	 * Get the total count
+	 * @return the count
+	 */
+	public long getCount(){
+		return count.sum();
+	}
+
+	/**
+	 * Get the rate since the previous measurement, measured again once a second has passed
+	 * @return the occurrences per second
+	 */
+	public synchronized long getRate(){
+		long now=System.nanoTime();
+		if(now-lastTime>=RATE_INTERVAL){
+			long count=this.count.sum();
+			rate=(count-lastCount)*RATE_INTERVAL/(now-lastTime);
+			lastCount=count;
+			lastTime=now;
+		}
+		return rate;
+	}
+}
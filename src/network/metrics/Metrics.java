@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of named meters, histograms and gauges
+ * Recording goes straight to the metric held by the caller, names are only looked up on creation
+ * The registry can be published as an MXBean, and read at any time as a snapshot
+ * In a snapshot a meter gives "name" and "name.rate" per second,
+ * a histogram gives "name.count", "name.mean", "name.p50", "name.p90", "name.p99" and "name.max"
+ */
+public class Metrics implements MetricsMXBean {
+	private final Map<String,Object> metrics=new ConcurrentHashMap<>();	// meters, histograms and gauges by name
+	private ObjectName objectName;		// name in the platform MBean server, null if not registered
+
+	/**
+	 * Get the meter of the name, created if absent
+	 * @param name the metric name
+	 * @return the meter
+	 */
+	public Meter meter(String name){
+		return (Meter)metrics.computeIfAbsent(name, key->new Meter());
+	}
+
+	/**
+	 * Get the histogram of the name, created if absent
+	 * @param name the metric name
+	 * @return the histogram
+	 */
+	public Histogram histogram(String name){
+		return (Histogram)metrics.computeIfAbsent(name, key->new Histogram());
+	}
+
+	/**
+	 * Add a gauge, read only when the metrics are
+	 * @param name the metric name
+	 * @param gauge the current value, such as a queue size
+	 */
+	public void gauge(String name, LongSupplier gauge){
+		metrics.put(name, gauge);
+	}
+
+	/**
+	 * Remove the metrics whose name starts with the prefix, such as those of a gone endpoint
+	 * @param prefix the name prefix
+	 */
+	public void remove(String prefix){
+		metrics.keySet().removeIf(name->name.startsWith(prefix));
+	}
+
+	/**
+	 * Read every metric
+	 * @return the values by name, sorted
+	 */
+	public SortedMap<String,Long> snapshot(){
+		SortedMap<String,Long> snapshot=new TreeMap<>();
+		metrics.forEach((name,metric)->{
+			if(metric instanceof Meter){
+				Meter meter=(Meter)metric;
+				snapshot.put(name, meter.getCount());
+				snapshot.put(name+".rate", meter.getRate());
+			}
+			else if(metric instanceof Histogram){
+				Histogram histogram=(Histogram)metric;
+				snapshot.put(name+".count", histogram.getCount());
+				snapshot.put(name+".mean", histogram.getMean());
+				snapshot.put(name+".p50", histogram.getPercentile(50));
+				snapshot.put(name+".p90", histogram.getPercentile(90));
+				snapshot.put(name+".p99", histogram.getPercentile(99));
+				snapshot.put(name+".max", histogram.getMax());
+			}
+			else
+				snapshot.put(name, ((LongSupplier)metric).getAsLong());
+		});
+		return snapshot;
+	}
+
+	@Override
+	public Map<String,Long> getMetrics(){
+		return snapshot();
+	}
+
+	@Override
+	public long getMetric(String name){
+		Long value=snapshot().get(name);
+		return value!=null?value:0;
+	}
+
+	/**
+	 * Publish the registry in the platform MBean server, replacing any registry of the same name
+	 * @param name the object name, such as "MCTF:type=RUDP,port=5000"
+	 * @return true if registered
+	 */
+	public synchronized boolean register(String name){
+		try{
+			MBeanServer server=ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName=new ObjectName(name);
+			if(server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			server.registerMBean(this, objectName);
+			this.objectName=objectName;
+			return true;
+		}
+		catch(Exception e){
+			//e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Withdraw the registry from the platform MBean server
+	 */
+	public synchronized void unregister(){
+		if(objectName==null)
+			return;
+		try{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+		catch(Exception e){
+			//e.printStackTrace();
+		}
+		objectName=null;
+	}
+}
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of a metrics registry, seen as a table of named values in JMX consoles
+ */
+public interface MetricsMXBean {
+	/**
+	 * Get the current value of every metric
+	 * @return the values by name
+	 */
+	public Map<String,Long> getMetrics();
+
+	/**
+	 * Get the current value of one metric
+	 * @param name the metric name
+	 * @return the value, 0 if unknown
+	 */
+	public long getMetric(String name);
+}
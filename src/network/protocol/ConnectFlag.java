@@ -22,4 +22,5 @@ package network.protocol;
 public class ConnectFlag{
 	public final static int ESTABLISH=0;		// establish a connectivity
 	public final static int TERMINATE=1;		// terminate current connectivity
+	public final static int LANES=2;			// exchange the ports of controller lanes
 }
@@ -47,6 +47,20 @@ public class Event {
 		return eventCount++;
 	}
 	
+	/**
+	 * Get the name of an event
+	 * @param event the event identifier
+	 * @return the default or custom event name, or the identifier itself if unknown
+	 */
+	public static String name(int event){
+		if(event>=0 && event<defaultEvents.length)
+			return defaultEvents[event];
+		for(Map.Entry<String,Integer> entry:customEvents.entrySet())
+			if(entry.getValue()==event)
+				return entry.getKey();
+		return String.valueOf(event);
+	}
+	
 	/**
 	 * Get the custom event identifier
 	 * @param event the custom event 
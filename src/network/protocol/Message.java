@@ -1,164 +1,659 @@
-/*******************************************************************************
- * Copyright Yifan Ruan
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- *******************************************************************************/
-package network.protocol;
-
-import java.io.Serializable;
-import java.util.concurrent.atomic.AtomicInteger;
-
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.KryoSerializable;
-import com.esotericsoftware.kryo.io.Input;
-import com.esotericsoftware.kryo.io.Output;
-
-/**
- * Definition of the formatted message to be delivered
- * @author Yifan Ruan (ry222ad@student.lnu.se)
- */
-public class Message implements Serializable,KryoSerializable{
-	private static final long serialVersionUID = 1L;
-	
-	private boolean isReliable=false;			// the message reliable or not
-	private int id=-1;					// the unique identifier                   
-	private String senderId;					// who sending the message
-	
-	private int code=-1;       					// message type
-	public final static int GENERAL=0;
-	public final static int ACK=1;
-	public final static int PING=2;
-	public final static int REPLY=3;
-	private int repliedMessageId=-1;  			// if type of the message is REPLAY or ACK, set this field, otherwise equal to-1
-	
-	private int event=-1;      					// message event
-	private byte[] payload=null;				// actual data 
-	
-	private static AtomicInteger count=new AtomicInteger(0);   // message number count
-		
-	@Override
-	public void read(Kryo kryo, Input input) {
-		this.isReliable=input.readBoolean();
-		this.id=input.readInt();
-		this.senderId=input.readString();
-		this.code=input.readInt();
-		this.repliedMessageId=input.readInt();
-		this.event=input.readInt();
-		this.payload=(byte[])kryo.readClassAndObject(input);
-	}
-
-	@Override
-	public void write(Kryo kryo, Output output) {
-		output.writeBoolean(isReliable);
-		output.writeInt(id);
-		output.writeString(senderId);
-		output.writeInt(code);
-		output.writeInt(repliedMessageId);
-		output.writeInt(event);
-		kryo.writeClassAndObject(output, payload);
-	}
-	
-	public Message(){}
-	
-	/**
-	 * Constructor
-	 * @param senderId the sender id
-	 * @param event the message event
-	 * @param payload the message payload, carrying the actual data
-	 */
-	public Message(String senderId,int event, byte[] payload){
-		this.senderId=senderId;
-		this.code=Message.GENERAL;
-		this.event=event;
-		this.payload=payload;
-		this.id=count.getAndIncrement();
-	}
-	
-	/**
-	 * Constructor
-	 * @param senderId the sender id
-	 * @param code the message code 
-	 * @param repliedMessageId the message id to be replied
-	 * @param payload the message payload, carrying the actual data
-	 */
-	public Message(String senderId, int code, int repliedMessageId, byte[] payload){
-		this.senderId=senderId;
-		this.code=code;
-		this.repliedMessageId=repliedMessageId;
-		this.payload=payload;
-		this.id=count.getAndIncrement();
-	}
-	
-	/**
-	 * Get the message code
-	 * @return the message code
-	 */
-	public int getCode(){
-		return this.code;
-	}
-	
-	/**
-	 * Get the replied message id
-	 * @return the replied message id
-	 */
-	public int getRepliedMessageId(){
-		return this.repliedMessageId;
-	}
-	
-	/**
-	 * Set the message reliable
-	 */
-	public void setReliable(){
-		this.isReliable=true;
-	}
-	
-	/**
-	 * Check the message reliable or not
-	 * @return true if the message reliable otherwise false
-	 */
-	public boolean isReliable(){
-		return this.isReliable;
-	}
-	
-	/**
-	 * Get the message id
-	 * @return the message id
-	 */
-	public int getId() {
-		return id;
-	}
-
-	/**
-	 * Get the message event
-	 * @return the message event
-	 */
-	public int getEvent() {
-		return event;
-	}
-
-	/**
-	 * Get the message payload
-	 * @return the message payload
-	 */
-	public byte[] getPayload() {
-		return payload;
-	}
-	
-	/**
-	 * Get the sender id
-	 * @return the sender id
-	 */
-	public String getSenderId() {
-		return senderId;
-	}
-}
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network.protocol;
+
+import java.io.Serializable;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import network.assist.Serializer;
+
+/**
+ * Definition of the formatted message to be delivered
+ * On the wire the message is a compact binary header followed by the payload, encoded without Kryo:
+ * byte 0 holds the version in its high bits and the flags TIMESTAMP, RELIABLE, ACK and PAYLOAD,
+ * bytes 1 to 4 the timestamp, byte 5 the code and the flags NAME, SESSION, CONFIRM and RESYNC,
+ * then the present fields as varints, ids and event shifted by one so that -1 takes one byte
+ * Messages of other versions, including the Kryo format of previous releases, are rejected by "decode"
+ * A typed message carries an object, serialized in place behind the header when sent, and decoded lazily once received
+ * @author Yifan Ruan (ry222ad@student.lnu.se)
+ */
+public class Message implements Serializable{
+	private static final long serialVersionUID = 1L;
+	
+	private boolean isReliable=false;			// the message reliable or not
+	private int id=-1;					// the unique identifier                   
+	private int seq;							// if the message reliable, sequence number in the window of the receiver
+	private int seqBase;						// if the message reliable, lowest unacknowledged sequence number of the sender
+	private String senderId;					// who sending the message
+	private transient byte[] senderName;		// UTF-8 sender id, encoded once
+	
+	// numeric id negotiated with the receiver to stand for the sender id, -1 if none
+	private int sessionId=-1;
+	private boolean isNamed=true;				// the sender id is sent along with the session id
+	private int confirmedSession=-1;			// session id of the receiver now known, sent back to it
+	private int resyncSession=-1;				// session id of the receiver not known, which must name itself again
+	
+	private int code=-1;       					// message type
+	public final static int GENERAL=0;
+	public final static int ACK=1;
+	public final static int PING=2;
+	public final static int REPLY=3;
+	public final static int FRAGMENT=4;
+	public final static int BATCH=5;
+	public final static int REPORT=6;
+	public final static int PARITY=7;
+	private int repliedMessageId=-1;  			// if type of the message is REPLAY or ACK, set this field, otherwise equal to-1
+												// if FRAGMENT, the id of the fragmented message
+	
+	// if type of the message is FRAGMENT, the position of the payload in the fragmented message
+	private int fragmentIndex;
+	private int fragmentNum;
+	private int fragmentSize;					// payload size of each fragment except the last one
+	
+	// acknowledgement of the reliable messages received from the receiver, carried by ACK or piggybacked by any message
+	private boolean hasAck=false;
+	private int ackSeq;							// all messages before this sequence number have been received
+	private long ackBits;						// bit i set if message "ackSeq+1+i" has been received
+	
+	// when the datagram was sent, in microseconds of the sender clock, for measuring the one-way delay
+	// updated in the serialized message at each sending, so time spent in queues of the sender is not counted
+	private boolean hasTimestamp=false;
+	private int timestamp;
+	
+	private int event=-1;      					// message event
+	private byte[] payload=null;				// actual data 
+	private transient volatile Object content;	// object carried by a typed message, or decoded from the payload
+	
+	private static AtomicInteger count=new AtomicInteger(0);   // message number count
+	
+	public final static int VERSION=1;			// version of the wire format
+	public final static int TIMESTAMP_OFFSET=1;	// position of the timestamp in the encoded message
+	
+	// flags of byte 0, below the version
+	private final static int TIMESTAMP=0x01;
+	private final static int RELIABLE=0x02;
+	private final static int HAS_ACK=0x04;
+	private final static int HAS_PAYLOAD=0x08;
+	// flags of byte 5, above the code
+	private final static int NAME=0x10;
+	private final static int SESSION=0x20;
+	private final static int CONFIRM=0x40;
+	private final static int RESYNC=0x80;
+	private final static int FIXED_SIZE=6;		// bytes before the varints
+	private final static int CONTENT_LENGTH_SIZE=4;	// padded varint before a content written in place, its length unknown until written
+		
+	/**
+	 * Get the size of the encoded message
+	 * @return the number of bytes written by "encode", or -1 if it has a content not serialized yet
+	 */
+	public int getEncodedSize(){
+		if(payload==null && content!=null)
+			return -1;
+		int size=FIXED_SIZE+varintSize(id+1)+varintSize(repliedMessageId+1)+varintSize(event+1);
+		if(isReliable)
+			size+=varintSize(seq)+varintSize(seq-seqBase);
+		if(sessionId>=0)
+			size+=varintSize(sessionId);
+		if(isNamed && senderId!=null)
+			size+=varintSize(senderName().length)+senderName().length;
+		if(code==FRAGMENT)
+			size+=varintSize(fragmentIndex)+varintSize(fragmentNum)+varintSize(fragmentSize);
+		if(hasAck)
+			size+=varintSize(ackSeq)+8;
+		if(confirmedSession>=0)
+			size+=varintSize(confirmedSession);
+		if(resyncSession>=0)
+			size+=varintSize(resyncSession);
+		if(payload!=null)
+			size+=varintSize(payload.length)+payload.length;
+		return size;
+	}
+	
+	/**
+	 * Encode the message into the buffer, from its position
+	 * @param buffer the buffer
+	 * @throws java.nio.BufferOverflowException if the message does not fit in the remaining bytes
+	 */
+	public void encode(ByteBuffer buffer){
+		boolean hasName=isNamed && senderId!=null;
+		buffer.put((byte)(VERSION<<4 | (hasTimestamp?TIMESTAMP:0) | (isReliable?RELIABLE:0)
+				| (hasAck?HAS_ACK:0) | (payload!=null || content!=null?HAS_PAYLOAD:0)));
+		buffer.putInt(hasTimestamp?timestamp:0);		// first, so it can be updated when sent
+		buffer.put((byte)(code&0x0f | (hasName?NAME:0) | (sessionId>=0?SESSION:0)
+				| (confirmedSession>=0?CONFIRM:0) | (resyncSession>=0?RESYNC:0)));
+		putVarint(buffer,id+1);
+		if(isReliable){
+			putVarint(buffer,seq);
+			putVarint(buffer,seq-seqBase);			// the distance is bounded by the window size
+		}
+		if(sessionId>=0)
+			putVarint(buffer,sessionId);
+		if(hasName){
+			putVarint(buffer,senderName().length);
+			buffer.put(senderName());
+		}
+		putVarint(buffer,repliedMessageId+1);
+		if(code==FRAGMENT){
+			putVarint(buffer,fragmentIndex);
+			putVarint(buffer,fragmentNum);
+			putVarint(buffer,fragmentSize);
+		}
+		if(hasAck){
+			putVarint(buffer,ackSeq);
+			buffer.putLong(ackBits);
+		}
+		if(confirmedSession>=0)
+			putVarint(buffer,confirmedSession);
+		if(resyncSession>=0)
+			putVarint(buffer,resyncSession);
+		putVarint(buffer,event+1);
+		if(payload!=null){
+			putVarint(buffer,payload.length);
+			buffer.put(payload);
+		}
+		else if(content!=null){
+			// serialized straight behind the header, then its length is filled in
+			int lengthPosition=buffer.position();
+			if(buffer.remaining()<CONTENT_LENGTH_SIZE)
+				throw new BufferOverflowException();
+			buffer.position(lengthPosition+CONTENT_LENGTH_SIZE);
+			Serializer.append(content, buffer);
+			int length=buffer.position()-lengthPosition-CONTENT_LENGTH_SIZE;
+			if(length>>>7*CONTENT_LENGTH_SIZE!=0)
+				throw new IllegalArgumentException("content too large "+length);
+			for(int i=0;i<CONTENT_LENGTH_SIZE;i++)
+				buffer.put(lengthPosition+i, (byte)(length>>>7*i & 0x7f | (i<CONTENT_LENGTH_SIZE-1?0x80:0)));
+		}
+	}
+	
+	/**
+	 * Decode a message from the buffer, from its position to its limit
+	 * @param buffer the buffer
+	 * @return the message
+	 * @throws IllegalArgumentException if the version is not supported
+	 * @throws java.nio.BufferUnderflowException if the message is truncated
+	 */
+	public static Message decode(ByteBuffer buffer){
+		Message message=new Message();
+		int flags=buffer.get()&0xff;
+		if(flags>>>4!=VERSION)
+			throw new IllegalArgumentException("unsupported message version "+(flags>>>4));
+		message.timestamp=buffer.getInt();
+		message.hasTimestamp=(flags&TIMESTAMP)!=0;
+		message.isReliable=(flags&RELIABLE)!=0;
+		message.hasAck=(flags&HAS_ACK)!=0;
+		int codeFlags=buffer.get()&0xff;
+		message.code=codeFlags&0x0f;
+		message.id=getVarint(buffer)-1;
+		if(message.isReliable){
+			message.seq=getVarint(buffer);
+			message.seqBase=message.seq-getVarint(buffer);
+		}
+		if((codeFlags&SESSION)!=0)
+			message.sessionId=getVarint(buffer);
+		message.isNamed=(codeFlags&NAME)!=0;
+		if(message.isNamed){
+			byte[] name=getBytes(buffer);
+			message.senderId=new String(name, StandardCharsets.UTF_8);
+		}
+		message.repliedMessageId=getVarint(buffer)-1;
+		if(message.code==FRAGMENT){
+			message.fragmentIndex=getVarint(buffer);
+			message.fragmentNum=getVarint(buffer);
+			message.fragmentSize=getVarint(buffer);
+		}
+		if(message.hasAck){
+			message.ackSeq=getVarint(buffer);
+			message.ackBits=buffer.getLong();
+		}
+		if((codeFlags&CONFIRM)!=0)
+			message.confirmedSession=getVarint(buffer);
+		if((codeFlags&RESYNC)!=0)
+			message.resyncSession=getVarint(buffer);
+		message.event=getVarint(buffer)-1;
+		if((flags&HAS_PAYLOAD)!=0)
+			message.payload=getBytes(buffer);
+		return message;
+	}
+	
+	private byte[] senderName(){
+		if(senderName==null)
+			senderName=senderId.getBytes(StandardCharsets.UTF_8);
+		return senderName;
+	}
+	
+	private static int varintSize(int value){
+		int size=1;
+		while((value>>>=7)!=0)
+			size++;
+		return size;
+	}
+	
+	private static void putVarint(ByteBuffer buffer, int value){
+		while((value&~0x7f)!=0){
+			buffer.put((byte)(value&0x7f | 0x80));
+			value>>>=7;
+		}
+		buffer.put((byte)value);
+	}
+	
+	private static int getVarint(ByteBuffer buffer){
+		int value=0;
+		for(int shift=0;shift<35;shift+=7){
+			int b=buffer.get();
+			value|=(b&0x7f)<<shift;
+			if((b&0x80)==0)
+				return value;
+		}
+		throw new IllegalArgumentException("malformed varint");
+	}
+	
+	private static byte[] getBytes(ByteBuffer buffer){
+		int length=getVarint(buffer);
+		if(length<0 || length>buffer.remaining())
+			throw new IllegalArgumentException("malformed length "+length);
+		byte[] bytes=new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+	
+	public Message(){}
+	
+	/**
+	 * Constructor
+	 * @param senderId the sender id
+	 * @param event the message event
+	 * @param payload the message payload, carrying the actual data
+	 */
+	public Message(String senderId,int event, byte[] payload){
+		this.senderId=senderId;
+		this.code=Message.GENERAL;
+		this.event=event;
+		this.payload=payload;
+		this.id=count.getAndIncrement();
+	}
+	
+	/**
+	 * Constructor
+	 * @param senderId the sender id
+	 * @param code the message code 
+	 * @param repliedMessageId the message id to be replied
+	 * @param payload the message payload, carrying the actual data
+	 */
+	public Message(String senderId, int code, int repliedMessageId, byte[] payload){
+		this.senderId=senderId;
+		this.code=code;
+		this.repliedMessageId=repliedMessageId;
+		this.payload=payload;
+		this.id=count.getAndIncrement();
+	}
+	
+	/**
+	 * Create a typed message, its content is serialized only when the message is
+	 * @param senderId the sender id
+	 * @param event the message event
+	 * @param content the content, of a class registered in "Serializer"
+	 * @return the message
+	 */
+	public static Message typed(String senderId, int event, Object content){
+		Message message=new Message(senderId,event,null);
+		message.content=content;
+		return message;
+	}
+	
+	/**
+	 * Create a typed reply
+	 * @param senderId the sender id
+	 * @param repliedMessageId the message id to be replied
+	 * @param content the content, of a class registered in "Serializer"
+	 * @return the reply
+	 */
+	public static Message reply(String senderId, int repliedMessageId, Object content){
+		Message reply=new Message(senderId,REPLY,repliedMessageId,null);
+		reply.content=content;
+		return reply;
+	}
+	
+	/**
+	 * Create a batch of small serialized messages sent in one datagram
+	 * @param payload the serialized messages, each prefixed with its length in two bytes
+	 * @return the batch
+	 */
+	public static Message batch(byte[] payload){
+		Message batch=new Message();
+		batch.code=BATCH;
+		batch.payload=payload;
+		return batch;
+	}
+	
+	/**
+	 * Create a parity datagram of forward error correction
+	 * @param event the event of the protected messages
+	 * @param payload the group description and parity symbol
+	 * @return the parity message
+	 */
+	public static Message parity(int event, byte[] payload){
+		Message parity=new Message();
+		parity.code=PARITY;
+		parity.event=event;
+		parity.payload=payload;
+		return parity;
+	}
+	
+	/**
+	 * Create a fragment of a serialized message too large for one datagram
+	 * @param messageId the id of the fragmented message
+	 * @param event the event of the fragmented message
+	 * @param fragmentIndex the index of the fragment
+	 * @param fragmentNum the number of fragments
+	 * @param fragmentSize the payload size of each fragment except the last one
+	 * @param payload the part of the serialized message
+	 * @return the fragment
+	 */
+	public static Message fragment(int messageId, int event, int fragmentIndex, int fragmentNum, int fragmentSize, byte[] payload){
+		Message fragment=new Message();
+		fragment.code=FRAGMENT;
+		fragment.repliedMessageId=messageId;
+		fragment.event=event;
+		fragment.fragmentIndex=fragmentIndex;
+		fragment.fragmentNum=fragmentNum;
+		fragment.fragmentSize=fragmentSize;
+		fragment.payload=payload;
+		return fragment;
+	}
+	
+	/**
+	 * Get the fragment index
+	 * @return the index if the message is FRAGMENT
+	 */
+	public int getFragmentIndex(){
+		return this.fragmentIndex;
+	}
+	
+	/**
+	 * Get the number of fragments
+	 * @return the number if the message is FRAGMENT
+	 */
+	public int getFragmentNum(){
+		return this.fragmentNum;
+	}
+	
+	/**
+	 * Get the payload size of each fragment except the last one
+	 * @return the size if the message is FRAGMENT
+	 */
+	public int getFragmentSize(){
+		return this.fragmentSize;
+	}
+	
+	/**
+	 * Get the message code
+	 * @return the message code
+	 */
+	public int getCode(){
+		return this.code;
+	}
+	
+	/**
+	 * Get the replied message id
+	 * @return the replied message id
+	 */
+	public int getRepliedMessageId(){
+		return this.repliedMessageId;
+	}
+	
+	/**
+	 * Set the message reliable
+	 */
+	public void setReliable(){
+		this.isReliable=true;
+	}
+	
+	/**
+	 * Check the message reliable or not
+	 * @return true if the message reliable otherwise false
+	 */
+	public boolean isReliable(){
+		return this.isReliable;
+	}
+	
+	/**
+	 * Set the sequence number of the reliable message
+	 * @param seq the sequence number
+	 * @param seqBase the lowest sequence number not acknowledged yet
+	 */
+	public void setSeq(int seq, int seqBase){
+		this.seq=seq;
+		this.seqBase=seqBase;
+	}
+	
+	/**
+	 * Get the sequence number of the reliable message
+	 * @return the sequence number
+	 */
+	public int getSeq(){
+		return this.seq;
+	}
+	
+	/**
+	 * Get the lowest sequence number the sender has not seen acknowledged
+	 * @return the sequence number
+	 */
+	public int getSeqBase(){
+		return this.seqBase;
+	}
+	
+	/**
+	 * Attach acknowledgement of received reliable messages
+	 * @param ackSeq all messages before this sequence number have been received
+	 * @param ackBits bit i set if message "ackSeq+1+i" has been received
+	 */
+	public void setAck(int ackSeq, long ackBits){
+		this.hasAck=true;
+		this.ackSeq=ackSeq;
+		this.ackBits=ackBits;
+	}
+	
+	/**
+	 * Remove the acknowledgement attached for another receiver
+	 */
+	public void clearAck(){
+		this.hasAck=false;
+	}
+	
+	/**
+	 * Check the message carrying acknowledgement or not
+	 * @return true if acknowledgement attached
+	 */
+	public boolean hasAck(){
+		return this.hasAck;
+	}
+	
+	/**
+	 * Get the cumulative acknowledged sequence number
+	 * @return all messages before this sequence number have been received
+	 */
+	public int getAckSeq(){
+		return this.ackSeq;
+	}
+	
+	/**
+	 * Get the selective acknowledgement bitmap
+	 * @return bit i set if message "ackSeq+1+i" has been received
+	 */
+	public long getAckBits(){
+		return this.ackBits;
+	}
+	
+	/**
+	 * Stamp the message with the current time, updated again by "stamp" when sent
+	 */
+	public void setTimestamp(){
+		this.hasTimestamp=true;
+		this.timestamp=(int)(System.nanoTime()/1000);
+	}
+	
+	/**
+	 * Update the timestamp of a serialized message with the current time, if it has one
+	 * @param data the serialized message
+	 */
+	public static void stamp(byte[] data){
+		if(!isStamped(data))
+			return;
+		int timestamp=(int)(System.nanoTime()/1000);
+		data[TIMESTAMP_OFFSET]=(byte)(timestamp>>>24);
+		data[TIMESTAMP_OFFSET+1]=(byte)(timestamp>>>16);
+		data[TIMESTAMP_OFFSET+2]=(byte)(timestamp>>>8);
+		data[TIMESTAMP_OFFSET+3]=(byte)timestamp;
+	}
+	
+	/**
+	 * Check whether a serialized message carries a timestamp
+	 * @param data the serialized message
+	 * @return true if bytes 1 to 4 are its timestamp
+	 */
+	public static boolean isStamped(byte[] data){
+		return data.length>=TIMESTAMP_OFFSET+4 && (data[0]&TIMESTAMP)!=0;
+	}
+	
+	/**
+	 * Check the message carrying its sending time or not
+	 * @return true if stamped
+	 */
+	public boolean hasTimestamp(){
+		return this.hasTimestamp;
+	}
+	
+	/**
+	 * Get the sending time
+	 * @return the time in microseconds of the sender clock, wrapping around
+	 */
+	public int getTimestamp(){
+		return this.timestamp;
+	}
+	
+	/**
+	 * Get the message id
+	 * @return the message id
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Get the message event
+	 * @return the message event
+	 */
+	public int getEvent() {
+		return event;
+	}
+
+	/**
+	 * Get the message payload
+	 * @return the message payload, the content serialized if the message is typed
+	 */
+	public byte[] getPayload() {
+		if(payload==null && content!=null)
+			payload=Serializer.write(content);
+		return payload;
+	}
+	
+	/**
+	 * Get the content of a typed message, decoded from the payload at the first call
+	 * @param type the content class
+	 * @return the content, or null if the message has no payload
+	 */
+	public <T> T getPayload(Class<T> type) {
+		Object content=this.content;
+		if(!type.isInstance(content)){
+			if(payload==null)
+				return null;
+			content=Serializer.read(payload, 0, payload.length, type);
+			this.content=content;
+		}
+		return type.cast(content);
+	}
+	
+	/**
+	 * Get the sender id
+	 * @return the sender id
+	 */
+	public String getSenderId() {
+		return senderId;
+	}
+	
+	/**
+	 * Set the sender id, resolved from the session id by the receiver
+	 * @param senderId the sender id
+	 */
+	public void setSenderId(String senderId){
+		this.senderId=senderId;
+		this.senderName=null;
+	}
+	
+	/**
+	 * Set the numeric id standing for the sender id
+	 * @param sessionId the session id, not negative
+	 * @param isNamed true if the sender id is sent too, until the receiver knows the session id
+	 */
+	public void setSession(int sessionId, boolean isNamed){
+		this.sessionId=sessionId;
+		this.isNamed=isNamed;
+	}
+	
+	/**
+	 * Get the numeric id standing for the sender id
+	 * @return the session id, or -1
+	 */
+	public int getSessionId(){
+		return this.sessionId;
+	}
+	
+	/**
+	 * Tell the receiver that one of its session ids is now known
+	 * @param sessionId the session id of the receiver
+	 */
+	public void setConfirmedSession(int sessionId){
+		this.confirmedSession=sessionId;
+	}
+	
+	/**
+	 * Get the session id of the receiver the sender has learnt
+	 * @return the session id, or -1
+	 */
+	public int getConfirmedSession(){
+		return this.confirmedSession;
+	}
+	
+	/**
+	 * Ask the receiver to name itself again along with one of its session ids
+	 * @param sessionId the session id of the receiver the sender does not know
+	 */
+	public void setResyncSession(int sessionId){
+		this.resyncSession=sessionId;
+	}
+	
+	/**
+	 * Get the session id of the receiver the sender does not know
+	 * @return the session id, or -1
+	 */
+	public int getResyncSession(){
+		return this.resyncSession;
+	}
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright Yifan Ruan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import network.address.Endpoint;
+import network.protocol.Event;
+import network.protocol.Message;
+
+/**
+ * Reliable delivery over a memory network in manual mode, with seeded loss and reordering
+ */
+public class MemoryNetworkTest {
+	private final static int TIMEOUT=20000;		// real time allowed to a test in milliseconds
+
+	private MemoryNetwork network;
+	private List<RUDPImpl> instances=new ArrayList<>();
+
+	@After
+	public void tearDown(){
+		instances.forEach(RUDPImpl::stop);
+		if(network!=null)
+			network.stop();
+	}
+
+	@Test
+	public void sameSeedDeliversSameDatagrams() throws Exception{
+		List<Integer> first=transfer(7);
+		List<Integer> second=transfer(7);
+		assertEquals(first, second);
+
+		// some lost and some reordered
+		assertTrue(first.size()<200);
+		List<Integer> sorted=new ArrayList<>(first);
+		Collections.sort(sorted);
+		assertNotEquals(sorted, first);
+	}
+
+	/**
+	 * Send numbered datagrams over a lossy link and collect them as delivered
+	 * @param seed the seed of the network
+	 * @return the numbers in order of delivery
+	 */
+	private List<Integer> transfer(long seed) throws Exception{
+		MemoryNetwork network=new MemoryNetwork(seed,true);
+		network.setLoss(.1);
+		network.setDelay(5, 3);
+		network.setReorder(.2, 20);
+		MemoryTransport sender=network.bind(0);
+		MemoryTransport receiver=network.bind(0);
+		List<Integer> received=Collections.synchronizedList(new ArrayList<>());
+		Thread listener=new Thread(()->{
+			try{
+				receiver.listen((data,endpoint)->received.add(data.getInt()));
+			}
+			catch(Exception e){
+				//e.printStackTrace();
+			}
+		});
+		listener.start();
+
+		Endpoint endpoint=new Endpoint(InetAddress.getLoopbackAddress(),receiver.getLocalPort());
+		for(int i=0;i<200;i++){
+			sender.send(ByteBuffer.allocate(4).putInt(0,i), endpoint);
+			network.advance(1);
+		}
+		network.advance(1000);
+		long deadline=System.currentTimeMillis()+TIMEOUT;
+		while(received.size()<network.getDeliveredNum() && System.currentTimeMillis()<deadline)
+			Thread.sleep(1);
+		receiver.close();
+		listener.join(TIMEOUT);
+		network.stop();
+		return new ArrayList<>(received);
+	}
+
+	@Test
+	public void stopAndWaitDeliversInOrder() throws Exception{
+		List<Integer> received=send(42,1,50);
+		List<Integer> expected=new ArrayList<>();
+		for(int i=0;i<50;i++)
+			expected.add(i);
+		assertEquals(expected, received);
+	}
+
+	@Test
+	public void windowDeliversEveryMessageOnce() throws Exception{
+		List<Integer> received=send(3,32,200);
+		assertEquals(200, received.size());
+		Collections.sort(received);
+		for(int i=0;i<200;i++)
+			assertEquals(i, (int)received.get(i));
+	}
+
+	/**
+	 * Send numbered reliable messages over a lossy and reordering link
+	 * @param seed the seed of the network
+	 * @param windowSize the window size of the sender
+	 * @param num the number of messages
+	 * @return the numbers in order of dispatch
+	 */
+	private List<Integer> send(long seed, int windowSize, int num) throws Exception{
+		network=new MemoryNetwork(seed,true);
+		network.setLoss(.1);
+		network.setDelay(5, 2);
+		network.setReorder(.1, 15);
+		RUDPImpl sender=start("sender");
+		RUDPImpl receiver=start("receiver");
+		sender.setWindowSize(windowSize);
+		List<Integer> received=Collections.synchronizedList(new ArrayList<>());
+		receiver.getReactor().register(Event.TOUCH, message->{
+			received.add(ByteBuffer.wrap(message.getPayload()).getInt());
+			return null;
+		});
+
+		Endpoint endpoint=new Endpoint(InetAddress.getLoopbackAddress(),receiver.getLocalPort());
+		List<CompletableFuture<Result>> results=new ArrayList<>();
+		for(int i=0;i<num;i++){
+			Message message=new Message("sender",Event.TOUCH,ByteBuffer.allocate(4).putInt(i).array());
+			results.add(sender.sendReliableMessageAsync(message, endpoint, null, null));
+		}
+
+		// the virtual time follows the real one, in which the resends are timed
+		long deadline=System.currentTimeMillis()+TIMEOUT;
+		while(received.size()<num && System.currentTimeMillis()<deadline){
+			network.advance(1);
+			Thread.sleep(1);
+		}
+		for(CompletableFuture<Result> result:results){
+			while(!result.isDone() && System.currentTimeMillis()<deadline){
+				network.advance(1);
+				Thread.sleep(1);
+			}
+			assertEquals(Result.RECEIVED, result.get(0, TimeUnit.MILLISECONDS).getFlag());
+		}
+		return new ArrayList<>(received);
+	}
+
+	private RUDPImpl start(String userId) throws Exception{
+		RUDPImpl instance=new RUDPImpl(userId,network.bind(0));
+		instances.add(instance);
+		new Thread(instance).start();
+		return instance;
+	}
+}